@@ -3,6 +3,7 @@ package wendu.jsbdemo;
 import android.os.Bundle;
 import androidx.appcompat.app.AppCompatActivity;
 
+import wendu.dsbridge.special.BridgeExecutor;
 import wendu.dsbridge.special.DWebView;
 
 public class JavascriptCallNativeActivity extends AppCompatActivity {
@@ -14,6 +15,10 @@ public class JavascriptCallNativeActivity extends AppCompatActivity {
         final DWebView dwebView= (DWebView) findViewById(R.id.webview);
         // set debug mode
         DWebView.setWebContentsDebuggingEnabled(true);
+        // run asynchronous APIs in a pool and return to javascript immediately,
+        // remove it to compare the "slow asynchronous calls" test with the default
+        BridgeExecutor.register("async", 8, 2000);
+        dwebView.setAsynCallThread("async");
         dwebView.addJavascriptObject(new JsApi(), null);
         dwebView.addJavascriptObject(new JsEchoApi(),"echo");
         dwebView.loadUrl("file:///android_asset/js-call-native.html");
@@ -23,6 +23,13 @@ public class JsApi{
         handler.complete(msg+" [ asyn call]");
     }
 
+    @JavascriptInterface
+    public void testSlowAsyn(Object msg, CompletionHandler<String> handler) throws InterruptedException {
+        // simulate the work a handler does before going asynchronous
+        Thread.sleep(50);
+        handler.complete(msg + " [ slow asyn call]");
+    }
+
     @JavascriptInterface
     public String testNoArgSyn(Object arg) throws JSONException {
         return  "testNoArgSyn called [ syn call]";
@@ -1,13 +1,15 @@
 package wendu.jsbdemo;
 
+import android.net.http.HttpResponseCache;
 import android.os.Bundle;
 import androidx.appcompat.app.AppCompatActivity;
-import android.webkit.JavascriptInterface;
 
-import org.json.JSONObject;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
-import wendu.dsbridge.special.CompletionHandler;
 import wendu.dsbridge.special.DWebView;
+import wendu.dsbridge.special.HttpProxy;
 
 public class WrokWithFlyioTestActivity extends AppCompatActivity {
 
@@ -16,22 +18,17 @@ public class WrokWithFlyioTestActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_wrok_with_flyio_test);
         DWebView dWebView= (DWebView) findViewById(R.id.webview);
-        dWebView.addJavascriptObject(new Object(){
-
-            /**
-             * Note: This method is for Fly.js
-             * In browser, Ajax requests are sent by browser, but Fly can
-             * redirect requests to native, more about Fly see  https://github.com/wendux/fly
-             * @param requestData passed by fly.js, more detail reference https://wendux.github.io/dist/#/doc/flyio-en/native
-             * @param handler
-             */
-            @JavascriptInterface
-            public void onAjaxRequest(Object requestData, CompletionHandler handler){
-                // Handle ajax request redirected by Fly
-                AjaxHandler.onAjaxRequest((JSONObject)requestData,handler);
+        // the disk cache of the requests performed by native
+        if (HttpResponseCache.getInstalled() == null) {
+            try {
+                HttpResponseCache.install(new File(getCacheDir(), "http"), 10 * 1024 * 1024);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-
-        },null);
+        }
+        // fly.js forwards the ajax requests to native (onAjaxRequest), more about fly see https://github.com/wendux/fly
+        dWebView.addJavascriptObject(new HttpProxy(Arrays.asList("www.baidu.com",
+                "assets-cdn.github.com", "github.githubassets.com")), null);
 
         dWebView.loadUrl("file:///android_asset/fly.html");
     }
@@ -0,0 +1,23 @@
+package wendu.dsbridge.special;
+
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The java APIs called by the benchmarks, dispatched by the generated {@link JavascriptDispatcher}.
+ */
+public class BenchmarkApi {
+
+    @JavascriptInterface
+    public Object add(Object msg) throws JSONException {
+        JSONObject arg = (JSONObject) msg;
+        return arg.getInt("a") + arg.getInt("b");
+    }
+
+    @JavascriptInterface
+    public void echo(Object msg, CompletionHandler<Object> handler) {
+        handler.complete(msg);
+    }
+}
@@ -0,0 +1,90 @@
+package wendu.dsbridge.special;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The decoding of a call from javascript and the encoding of its result, with the org.json tree
+ * of {@link OrgJsonCodec} and the binding of {@link StreamingJsonCodec}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BridgeCodecBenchmark {
+
+    public static class Item {
+        public String name;
+        public int count;
+        public double price;
+    }
+
+    public static class Order {
+        public long id;
+        public String customer;
+        public boolean paid;
+        public List<Item> items;
+    }
+
+    private static final String ARG = "{\"data\":{\"id\":1234567,\"customer\":\"Jane \\\"J\\\" Doe\",\"paid\":true,"
+            + "\"items\":[{\"name\":\"apple\",\"count\":3,\"price\":0.5},"
+            + "{\"name\":\"pear\",\"count\":1,\"price\":0.75},"
+            + "{\"name\":\"plum\",\"count\":12,\"price\":0.2}]},"
+            + "\"_dscbid\":42,\"_dstrace\":\"t-1\"}";
+
+    private final BridgeCodec orgJson = new OrgJsonCodec();
+    private final BridgeCodec streaming = new StreamingJsonCodec();
+    private final StringBuilder out = new StringBuilder();
+    private Object orgJsonValue;
+    private Object streamingValue;
+
+    @Setup
+    public void setUp() throws JSONException {
+        orgJsonValue = orgJson.decodeCall(ARG).data(Object.class);
+        streamingValue = streaming.decodeCall(ARG).data(Order.class);
+    }
+
+    @Benchmark
+    public Object decodeOrgJson() throws JSONException {
+        return orgJson.decodeCall(ARG).data(Object.class);
+    }
+
+    @Benchmark
+    public Object decodeStreamingToJson() throws JSONException {
+        return streaming.decodeCall(ARG).data(Object.class);
+    }
+
+    @Benchmark
+    public Object decodeStreamingToPojo() throws JSONException {
+        return streaming.decodeCall(ARG).data(Order.class);
+    }
+
+    @Benchmark
+    public int decodeStreamingCallbackOnly() throws JSONException {
+        // the asynchronous APIs which ignore their argument
+        return streaming.decodeCall(ARG).callbackId();
+    }
+
+    @Benchmark
+    public int encodeOrgJson() throws JSONException {
+        out.setLength(0);
+        orgJson.encodeValue((JSONObject) orgJsonValue, out);
+        return out.length();
+    }
+
+    @Benchmark
+    public int encodeStreamingPojo() throws JSONException {
+        out.setLength(0);
+        streaming.encodeValue(streamingValue, out);
+        return out.length();
+    }
+}
@@ -0,0 +1,87 @@
+package wendu.dsbridge.special;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The dispatch of javascript calls to java APIs, and of java calls to javascript handlers until
+ * their results are returned, on a page which is ready.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BridgeCoreBenchmark {
+
+    private static final String SYN_ARG = "{\"data\":{\"a\":1,\"b\":2}}";
+    private static final String ASYN_ARG = "{\"data\":\"hello\",\"_dscbstub\":\"dscb0\"}";
+    private static final String BATCH = "[{\"method\":\"bench.add\",\"arg\":" + SYN_ARG + "},"
+            + "{\"method\":\"bench.echo\",\"arg\":" + ASYN_ARG + "},"
+            + "{\"method\":\"bench.add\",\"arg\":" + SYN_ARG + "}]";
+    private static final Object[] HANDLER_ARGS = new Object[]{1, "hello", true};
+
+    private InlinePlatform platform;
+    private BridgeCore core;
+    private int callbackId;
+    private Object returned;
+    private final OnReturnValue<Object> handler = new OnReturnValue<Object>() {
+        @Override
+        public void onValue(Object retValue) {
+            returned = retValue;
+        }
+    };
+
+    @Setup
+    public void setUp() throws JSONException {
+        platform = new InlinePlatform();
+        core = new BridgeCore(platform);
+        core.addJavascriptObject(new BenchmarkApi(), "bench", null);
+        core.onNewPage();
+        JSONObject features = new JSONObject();
+        features.put("batch", true);
+        features.put("wire", BridgeCore.WIRE_V2);
+        core.setJavascriptFeatures(features);
+        core.dispatchStartupQueue();
+    }
+
+    @Benchmark
+    public String callSynchronous() {
+        return core.call("bench.add", SYN_ARG);
+    }
+
+    @Benchmark
+    public String callAsynchronous() {
+        core.call("bench.echo", ASYN_ARG);
+        return platform.lastMessage;
+    }
+
+    @Benchmark
+    public String callMissingMethod() {
+        return core.call("bench.missing", SYN_ARG);
+    }
+
+    @Benchmark
+    public String callBatch() {
+        return core.callBatch(BATCH);
+    }
+
+    @Benchmark
+    public Object callHandlerAndReturn() throws JSONException {
+        core.callHandler("addValue", HANDLER_ARGS, 0, handler);
+        // the ids of the calls are consecutive
+        JSONObject ret = new JSONObject();
+        ret.put("id", ++callbackId);
+        ret.put("complete", true);
+        ret.put("data", 7);
+        core.returnValue(ret);
+        return returned;
+    }
+}
@@ -0,0 +1,36 @@
+package wendu.dsbridge.special;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The encoding of java calls to javascript handlers, in both wire versions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CallInfoBenchmark {
+
+    private static final BridgeCodec CODEC = new OrgJsonCodec();
+    private static final Object[] ARGS = new Object[]{1, "hello", true,
+            Collections.singletonMap("key", "value")};
+
+    private int id;
+
+    @Benchmark
+    public String encodeV1() {
+        return new BridgeCore.CallInfo(CODEC, "addValue", ++id, ARGS).toString(BridgeCore.WIRE_V1);
+    }
+
+    @Benchmark
+    public String encodeV2() {
+        return new BridgeCore.CallInfo(CODEC, "addValue", ++id, ARGS).toString(BridgeCore.WIRE_V2);
+    }
+}
@@ -0,0 +1,38 @@
+package wendu.dsbridge.special;
+
+/**
+ * A platform whose caller is always the main thread, it runs the posted tasks at once and keeps
+ * the last message sent to javascript.
+ */
+final class InlinePlatform implements BridgeCore.Platform {
+
+    String lastMessage;
+
+    @Override
+    public boolean isMainThread() {
+        return true;
+    }
+
+    @Override
+    public void post(Runnable task) {
+        task.run();
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+    }
+
+    @Override
+    public void postMessage(String message) {
+        lastMessage = message;
+    }
+
+    @Override
+    public void evaluateJavascript(String script) {
+        lastMessage = script;
+    }
+
+    @Override
+    public void log(String message) {
+    }
+}
@@ -0,0 +1,53 @@
+package wendu.dsbridge.special;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding and removing the handlers of javascript calls while {@code pending} others are waiting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PendingCallbacksBenchmark {
+
+    private static final OnReturnValue<Object> HANDLER = new OnReturnValue<Object>() {
+        @Override
+        public void onValue(Object retValue) {
+        }
+    };
+
+    @Param({"0", "1000"})
+    public int pending;
+
+    private PendingCallbacks callbacks;
+    private int id;
+
+    @Setup
+    public void setUp() {
+        callbacks = new PendingCallbacks(new InlinePlatform());
+        for (id = 1; id <= pending; id++) {
+            callbacks.put(id, HANDLER, 0, "waiting", 0);
+        }
+    }
+
+    @Benchmark
+    public Object putAndRemove() {
+        int key = ++id;
+        callbacks.put(key, HANDLER, 0, "addValue", 0);
+        return callbacks.remove(key);
+    }
+
+    @Benchmark
+    public Object get() {
+        return callbacks.get(pending > 0 ? pending / 2 : 1);
+    }
+}
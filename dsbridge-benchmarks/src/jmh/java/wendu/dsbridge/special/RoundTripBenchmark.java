@@ -0,0 +1,74 @@
+package wendu.dsbridge.special;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips through the real dsbridge.js in a {@link HeadlessBridge}, in round trips per
+ * second. Run with the gc profiler (the default of the jmh task) for the allocation per round
+ * trip, javascript engine included.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RoundTripBenchmark {
+
+    private static final String PAGE = "var last;\n"
+            + "dsBridge.register('addValue', function (a, b) { return a + b; });\n"
+            + "dsBridge.registerAsyn('echo', function (value, cb) { cb(value); });\n"
+            + "function callSyn() { return dsBridge.call('bench.add', {a: 1, b: 2}); }\n"
+            + "function callAsyn() { dsBridge.call('bench.echo', 'hello', function (v) { last = v; }); }\n"
+            + "function getLast() { return last; }\n";
+    private static final Object[] HANDLER_ARGS = new Object[]{1, 2};
+    private static final Object[] ECHO_ARGS = new Object[]{"hello"};
+
+    private HeadlessBridge page;
+    private Object returned;
+    private final OnReturnValue<Object> handler = new OnReturnValue<Object>() {
+        @Override
+        public void onValue(Object retValue) {
+            returned = retValue;
+        }
+    };
+
+    @Setup
+    public void setUp() throws Exception {
+        page = new HeadlessBridge();
+        page.addJavascriptObject(new BenchmarkApi(), "bench");
+        page.evaluate(PAGE);
+        page.runUntilIdle();
+    }
+
+    @Benchmark
+    public Object javascriptCallsSynchronousApi() {
+        return page.invoke("callSyn");
+    }
+
+    @Benchmark
+    public Object javascriptCallsAsynchronousApi() {
+        page.invoke("callAsyn");
+        page.runUntilIdle();
+        return page.invoke("getLast");
+    }
+
+    @Benchmark
+    public Object javaCallsSynchronousHandler() {
+        page.callHandler("addValue", HANDLER_ARGS, handler);
+        page.runUntilIdle();
+        return returned;
+    }
+
+    @Benchmark
+    public Object javaCallsAsynchronousHandler() {
+        page.callHandler("echo", ECHO_ARGS, handler);
+        page.runUntilIdle();
+        return returned;
+    }
+}
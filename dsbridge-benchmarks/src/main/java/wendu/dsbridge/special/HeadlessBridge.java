@@ -0,0 +1,403 @@
+package wendu.dsbridge.special;
+
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+/**
+ * A page without WebView: dsbridge.js runs in an embedded javascript engine and calls the
+ * {@link BridgeCore} through {@code _dsbridge}, as it calls DWebView, so both halves of the
+ * bridge can be tested and benchmarked together on the JVM.
+ * <p>
+ * The thread which creates it is the main thread and the only javascript thread. The tasks
+ * posted by the bridge, the messages to javascript and the timers of javascript are queued and
+ * run by {@link #runUntilIdle()} on a virtual clock, so the delays don't take time.
+ */
+public final class HeadlessBridge {
+
+    /**
+     * What a page needs from a browser, and the delivery of the messages as the message port of
+     * DWebView does.
+     */
+    private static final String PRELUDE = "var window = this;\n"
+            + "var navigator = {userAgent: 'dsbridge-headless'};\n"
+            + "var module = {};\n"
+            + "var __dsTimers = {}, __dsTimerId = 0, __dsHost = null;\n"
+            + "function setTimeout(fn, delay) {\n"
+            + "    var id = ++__dsTimerId;\n"
+            + "    __dsTimers[id] = fn;\n"
+            + "    __dsHost.setTimeout(id, delay || 0);\n"
+            + "    return id;\n"
+            + "}\n"
+            + "function clearTimeout(id) {\n"
+            + "    delete __dsTimers[id];\n"
+            + "}\n"
+            + "// the clock of the page is the virtual one\n"
+            + "Date.now = function () {\n"
+            + "    return __dsHost.now();\n"
+            + "};\n"
+            + "function __dsInstall(host, bridge) {\n"
+            + "    __dsHost = host;\n"
+            + "    window._dsbridge = bridge;\n"
+            + "}\n"
+            + "function __dsFireTimer(id) {\n"
+            + "    var fn = __dsTimers[id];\n"
+            + "    if (fn) {\n"
+            + "        delete __dsTimers[id];\n"
+            + "        fn();\n"
+            + "    }\n"
+            + "}\n"
+            + "function __dsDeliver(messages) {\n"
+            + "    window._handleMessagesFromNative(JSON.parse(messages));\n"
+            + "}\n";
+
+    private static final class Task implements Comparable<Task> {
+        final long due;
+        final long seq;
+        final Runnable runnable;
+
+        Task(long due, long seq, Runnable runnable) {
+            this.due = due;
+            this.seq = seq;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (due != other.due) {
+                return due < other.due ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    /**
+     * The {@code _dsbridge} object of the page, as the InnerJavascriptInterface of DWebView.
+     */
+    public static final class JavascriptBridge {
+        private final BridgeCore core;
+
+        JavascriptBridge(BridgeCore core) {
+            this.core = core;
+        }
+
+        public String call(String methodName, String argStr) {
+            return core.call(methodName, argStr);
+        }
+
+        public String callBatch(String callsStr) {
+            return core.callBatch(callsStr);
+        }
+
+        public boolean callbackTable() {
+            return true;
+        }
+
+        public int uploadBegin() {
+            return core.beginUpload();
+        }
+
+        public boolean uploadChunk(int id, String chunk) {
+            return core.appendUpload(id, chunk);
+        }
+    }
+
+    /**
+     * The timers of the page.
+     */
+    public static final class Host {
+        private final HeadlessBridge bridge;
+
+        Host(HeadlessBridge bridge) {
+            this.bridge = bridge;
+        }
+
+        public double now() {
+            return bridge.now();
+        }
+
+        public void setTimeout(double id, double delay) {
+            final int timer = (int) id;
+            bridge.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    bridge.invoke("__dsFireTimer", timer);
+                }
+            }, (long) Math.max(0, delay));
+        }
+    }
+
+    /**
+     * The {@code _dsb} APIs of DWebView which are used by dsbridge.js.
+     */
+    public static class InnerApi {
+        private final HeadlessBridge bridge;
+
+        InnerApi(HeadlessBridge bridge) {
+            this.bridge = bridge;
+        }
+
+        @JavascriptInterface
+        public boolean hasNativeMethod(Object args) throws JSONException {
+            JSONObject jsonObject = (JSONObject) args;
+            return bridge.core.hasNativeMethod(jsonObject.getString("name").trim(),
+                    jsonObject.getString("type").trim());
+        }
+
+        @JavascriptInterface
+        public Object dsinit(Object jsonObject) throws JSONException {
+            JSONObject features = jsonObject instanceof JSONObject ? (JSONObject) jsonObject : new JSONObject();
+            JSONObject reply = bridge.core.setJavascriptFeatures(features);
+            bridge.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    bridge.core.dispatchStartupQueue();
+                }
+            }, 0);
+            return reply;
+        }
+
+        @JavascriptInterface
+        public void returnValue(Object obj) {
+            bridge.core.returnValue((JSONObject) obj);
+        }
+    }
+
+    private final Thread mainThread = Thread.currentThread();
+    private final ScriptEngine engine;
+    private final BridgeCore core;
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private final List<String> logs = new ArrayList<>();
+    private long now = 0;
+    private long seq = 0;
+
+    /**
+     * Load the dsbridge.js of {@link #defaultScript()} in Rhino, or Nashorn if Rhino is not in
+     * the classpath.
+     */
+    public HeadlessBridge() throws IOException, ScriptException {
+        this(defaultScript());
+    }
+
+    public HeadlessBridge(File script) throws IOException, ScriptException {
+        this(defaultEngine(), new String(Files.readAllBytes(script.toPath()), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param engineName the name of a JSR-223 javascript engine, such as "rhino" or "nashorn".
+     * @param script     the dsbridge.js of the page, such as npm/index.js or the legacy dist/dsbridge.js.
+     */
+    public HeadlessBridge(String engineName, String script) throws ScriptException {
+        engine = new ScriptEngineManager().getEngineByName(engineName);
+        if (engine == null) {
+            throw new IllegalStateException("No javascript engine named \"" + engineName + "\"");
+        }
+        core = new BridgeCore(new BridgeCore.Platform() {
+            @Override
+            public boolean isMainThread() {
+                return Thread.currentThread() == mainThread;
+            }
+
+            @Override
+            public void post(Runnable task) {
+                schedule(task, 0);
+            }
+
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+                schedule(task, delayMillis);
+            }
+
+            @Override
+            public void postMessage(final String message) {
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        invoke("__dsDeliver", "[" + message + "]");
+                    }
+                }, 0);
+            }
+
+            @Override
+            public void evaluateJavascript(final String script) {
+                schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        evaluate(script);
+                    }
+                }, 0);
+            }
+
+            @Override
+            public void log(String message) {
+                synchronized (logs) {
+                    logs.add(message);
+                }
+            }
+        });
+        core.addJavascriptObject(new InnerApi(this), "_dsb", null);
+        core.onNewPage();
+        engine.eval(PRELUDE);
+        invoke("__dsInstall", new Host(this), new JavascriptBridge(core));
+        engine.eval(script);
+    }
+
+    /**
+     * @return the file of the system property "dsbridge.script", npm/index.js of :dsbridge by default.
+     */
+    public static File defaultScript() {
+        return new File(System.getProperty("dsbridge.script", "../dsbridge/npm/index.js"));
+    }
+
+    private static String defaultEngine() {
+        ScriptEngineManager manager = new ScriptEngineManager();
+        return manager.getEngineByName("rhino") != null ? "rhino" : "nashorn";
+    }
+
+    public void addJavascriptObject(Object object, String namespace) {
+        addJavascriptObject(object, namespace, null);
+    }
+
+    public void addJavascriptObject(Object object, String namespace, String thread) {
+        core.addJavascriptObject(object, namespace, thread);
+    }
+
+    public void removeJavascriptObject(String namespace) {
+        core.removeJavascriptObject(namespace);
+    }
+
+    public void setBridgeRegistry(BridgeRegistry registry) {
+        core.setBridgeRegistry(registry);
+    }
+
+    public void setBridgeCodec(BridgeCodec codec) {
+        core.setBridgeCodec(codec);
+    }
+
+    public <T> void callHandler(String method, Object[] args, OnReturnValue<T> handler) {
+        callHandler(method, args, 0, handler);
+    }
+
+    public <T> void callHandler(String method, Object[] args, long timeoutMillis, OnReturnValue<T> handler) {
+        core.callHandler(method, args, timeoutMillis, handler);
+    }
+
+    public void hasJavascriptMethod(String handlerName, OnReturnValue<Boolean> existCallback) {
+        callHandler("_hasJavascriptMethod", new Object[]{handlerName}, existCallback);
+    }
+
+    public void setBridgeMetrics(BridgeMetrics metrics) {
+        core.setBridgeMetrics(metrics);
+    }
+
+    public void setBridgeTracer(BridgeTracer tracer) {
+        core.setBridgeTracer(tracer);
+    }
+
+    /**
+     * As {@link DWebView#exportTrace(OnReturnValue)}, the callback is called in {@link #runUntilIdle()}.
+     */
+    public void exportTrace(OnReturnValue<String> callback) {
+        core.exportTrace(callback);
+    }
+
+    public int getUploadCount() {
+        return core.getUploadCount();
+    }
+
+    public int getPendingHandlerCount() {
+        return core.getPendingHandlerCount();
+    }
+
+    /**
+     * Evaluate a script of the page, such as the registration of its handlers. The tasks it
+     * posts run in {@link #runUntilIdle()}.
+     */
+    public Object evaluate(String script) {
+        checkMainThread();
+        try {
+            return engine.eval(script);
+        } catch (ScriptException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Call a global function of the page, without parsing a script.
+     */
+    public Object invoke(String function, Object... args) {
+        checkMainThread();
+        try {
+            return ((Invocable) engine).invokeFunction(function, args);
+        } catch (ScriptException | NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Run the queued tasks and the ones they queue, the virtual clock jumps to the tasks which
+     * are delayed. The tasks queued from other threads, by the executors of asynchronous APIs,
+     * run if they are queued in the meantime.
+     */
+    public void runUntilIdle() {
+        checkMainThread();
+        Task task;
+        while ((task = poll()) != null) {
+            task.runnable.run();
+        }
+    }
+
+    /**
+     * @return the time of the virtual clock, in milliseconds.
+     */
+    public long now() {
+        synchronized (tasks) {
+            return now;
+        }
+    }
+
+    /**
+     * @return the errors reported by the bridge.
+     */
+    public List<String> getLogs() {
+        synchronized (logs) {
+            return new ArrayList<>(logs);
+        }
+    }
+
+    private void schedule(Runnable runnable, long delayMillis) {
+        synchronized (tasks) {
+            tasks.add(new Task(now + delayMillis, seq++, runnable));
+        }
+    }
+
+    private Task poll() {
+        synchronized (tasks) {
+            Task task = tasks.poll();
+            if (task != null && task.due > now) {
+                now = task.due;
+            }
+            return task;
+        }
+    }
+
+    private void checkMainThread() {
+        if (Thread.currentThread() != mainThread) {
+            throw new IllegalStateException("The page must be used in the thread which created it");
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package wendu.dsbridge.special;
+
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips between the real dsbridge.js and the bridge core in a {@link HeadlessBridge}.
+ */
+public class EndToEndTest {
+
+    public static class TestApi {
+        @JavascriptInterface
+        public Object add(Object msg) throws Exception {
+            JSONObject arg = (JSONObject) msg;
+            return arg.getInt("a") + arg.getInt("b");
+        }
+
+        @JavascriptInterface
+        public void countdown(Object msg, CompletionHandler<Integer> handler) {
+            for (int i = (Integer) msg; i > 0; i--) {
+                handler.setProgressData(i);
+            }
+            handler.complete(0);
+        }
+    }
+
+    public static class EchoApi {
+        @JavascriptInterface
+        public Object echo(Object msg) {
+            return msg;
+        }
+    }
+
+    public static class Point {
+        public int x;
+        public int y;
+    }
+
+    public static class TypedApi {
+        @JavascriptInterface
+        public Object move(Point point) {
+            point.x++;
+            return point;
+        }
+
+        @JavascriptInterface
+        public void sum(int[] values, CompletionHandler<Integer> handler) {
+            int sum = 0;
+            for (int value : values) {
+                sum += value;
+            }
+            handler.complete(sum);
+        }
+    }
+
+    public static class StreamApi {
+        @JavascriptInterface
+        public Object length(Reader reader) throws IOException {
+            char[] buffer = new char[16];
+            int length = 0;
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                length += n;
+            }
+            return length;
+        }
+
+        @JavascriptInterface
+        public void first(final Reader reader, final CompletionHandler<Integer> handler) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        handler.complete(reader.read());
+                    } catch (IOException e) {
+                        handler.complete(-1);
+                    }
+                }
+            }.start();
+        }
+    }
+
+    private static final String PAGE = "var results = [];\n"
+            + "dsBridge.register('addValue', function (a, b) { return a + b; });\n"
+            + "dsBridge.registerAsyn('delayed', function (value, cb) {\n"
+            + "    setTimeout(function () { cb(value + 1); }, 100);\n"
+            + "});\n"
+            + "dsBridge.register('calc', {\n"
+            + "    square: function (x) { return x * x; }\n"
+            + "});\n";
+
+    private HeadlessBridge page;
+
+    @Before
+    public void setUp() throws Exception {
+        page = load(HeadlessBridge.defaultScript());
+    }
+
+    private static HeadlessBridge load(File script) throws Exception {
+        HeadlessBridge page = new HeadlessBridge(script);
+        page.addJavascriptObject(new TestApi(), null);
+        page.addJavascriptObject(new EchoApi(), "util.echo");
+        page.evaluate(PAGE);
+        // dsinit
+        page.runUntilIdle();
+        return page;
+    }
+
+    private String results() {
+        return String.valueOf(page.evaluate("JSON.stringify(results)"));
+    }
+
+    @Test
+    public void callsSynchronousApis() {
+        page.evaluate("results.push(dsBridge.call('add', {a: 1, b: 2}));"
+                + "results.push(dsBridge.call('util.echo.echo', 'hi'));"
+                + "results.push(dsBridge.call('missing', 1));");
+        assertEquals("[3,\"hi\",null]", results());
+        assertEquals("[true,false,true]", String.valueOf(page.evaluate("JSON.stringify(["
+                + "dsBridge.hasNativeMethod('add'), dsBridge.hasNativeMethod('add', 'asyn'),"
+                + "dsBridge.hasNativeMethod('util.echo.echo')])")));
+    }
+
+    @Test
+    public void answersHasNativeMethodFromTheManifest() {
+        BridgeMetrics metrics = new BridgeMetrics();
+        page.setBridgeMetrics(metrics);
+        String check = "JSON.stringify([dsBridge.hasNativeMethod('countdown', 'asyn'),"
+                + "dsBridge.hasNativeMethod('more.add'), dsBridge.hasNativeMethod('shared.echo')])";
+        assertEquals("[true,false,false]", String.valueOf(page.evaluate(check)));
+
+        page.addJavascriptObject(new TestApi(), "more");
+        BridgeRegistry registry = new BridgeRegistry();
+        page.setBridgeRegistry(registry);
+        registry.addJavascriptObject(new EchoApi(), "shared");
+        page.removeJavascriptObject(null);
+        page.runUntilIdle();
+        assertEquals("[false,true,true]", String.valueOf(page.evaluate(check)));
+        assertEquals(null, metrics.getMethodMetrics("_dsb.hasNativeMethod", BridgeMetrics.JS_TO_NATIVE));
+    }
+
+    @Test
+    public void deliversProgressOfAsynchronousApis() {
+        page.evaluate("dsBridge.call('countdown', 3, function (v) { results.push(v); });");
+        page.runUntilIdle();
+        assertEquals("[3,2,1,0]", results());
+        assertEquals("[0,0]", String.valueOf(page.evaluate("JSON.stringify([dsBridge.getCallbackCount(),"
+                + "Object.keys(window).filter(function (k) { return /^dscb\\d/.test(k); }).length])")));
+    }
+
+    @Test
+    public void sharesCallbacksWithABundledCopy() throws Exception {
+        // a page bundling dsbridge from npm, besides the copy loaded first
+        String script = new String(Files.readAllBytes(HeadlessBridge.defaultScript().toPath()), StandardCharsets.UTF_8);
+        page.evaluate("var bundled = (function (module) {\n" + script + "\nreturn module.exports;\n})({});");
+        page.evaluate("bundled.call('countdown', 2, function (v) { results.push('b' + v); });"
+                + "dsBridge.call('countdown', 1, function (v) { results.push('d' + v); });");
+        page.runUntilIdle();
+        assertEquals("[\"b2\",\"b1\",\"b0\",\"d1\",\"d0\"]", results());
+        assertEquals(0, ((Number) page.evaluate("bundled.getCallbackCount()")).intValue());
+    }
+
+    @Test
+    public void sweepsAbandonedCallbacks() {
+        // kept until completed by default
+        page.evaluate("dsBridge.call('missing', 1, function () {});");
+        page.runUntilIdle();
+        assertEquals(1, ((Number) page.evaluate("dsBridge.getCallbackCount()")).intValue());
+        page.evaluate("dsBridge.setCallbackTimeout(10 * 60 * 1000);"
+                + "dsBridge.call('countdown', 1, function () {});"
+                + "dsBridge.call('missing', 1, function () {});"
+                + "results.push(dsBridge.getCallbackCount());");
+        page.runUntilIdle();
+        page.evaluate("results.push(dsBridge.getCallbackCount());");
+        assertEquals("[3,0]", results());
+        assertEquals(10 * 60 * 1000, page.now());
+    }
+
+    @Test
+    public void callsJavascriptHandlers() {
+        final List<Object> values = new ArrayList<>();
+        OnReturnValue<Object> collect = new OnReturnValue<Object>() {
+            @Override
+            public void onValue(Object retValue) {
+                values.add(retValue);
+            }
+        };
+        page.callHandler("addValue", new Object[]{3, 4}, collect);
+        page.callHandler("calc.square", new Object[]{5}, collect);
+        page.callHandler("delayed", new Object[]{1}, collect);
+        page.runUntilIdle();
+        assertEquals(3, values.size());
+        assertEquals(7, ((Number) values.get(0)).intValue());
+        assertEquals(25, ((Number) values.get(1)).intValue());
+        assertEquals(2, ((Number) values.get(2)).intValue());
+        assertEquals(100, page.now());
+        assertEquals(0, page.getPendingHandlerCount());
+    }
+
+    @Test
+    public void findsJavascriptHandlers() {
+        final List<Boolean> exists = new ArrayList<>();
+        OnReturnValue<Boolean> collect = new OnReturnValue<Boolean>() {
+            @Override
+            public void onValue(Boolean retValue) {
+                exists.add(retValue);
+            }
+        };
+        page.hasJavascriptMethod("addValue", collect);
+        page.hasJavascriptMethod("calc.square", collect);
+        page.hasJavascriptMethod("calc.cube", collect);
+        page.runUntilIdle();
+        assertEquals("[true, true, false]", exists.toString());
+    }
+
+    @Test
+    public void queuesHandlerCallsUntilDsinit() throws Exception {
+        HeadlessBridge page = new HeadlessBridge(HeadlessBridge.defaultScript());
+        final List<Object> values = new ArrayList<>();
+        page.callHandler("addValue", new Object[]{1, 1}, new OnReturnValue<Object>() {
+            @Override
+            public void onValue(Object retValue) {
+                values.add(retValue);
+            }
+        });
+        page.evaluate(PAGE);
+        page.runUntilIdle();
+        assertEquals(1, values.size());
+        assertEquals(2, ((Number) values.get(0)).intValue());
+    }
+
+    @Test
+    public void timesOutUnansweredHandlers() throws Exception {
+        BridgeTracer tracer = new BridgeTracer();
+        page.setBridgeTracer(tracer);
+        final List<Object> values = new ArrayList<>();
+        page.callHandler("missing", null, 500, new OnReturnValueOrTimeout<Object>() {
+            @Override
+            public void onValue(Object retValue) {
+                values.add(retValue);
+            }
+
+            @Override
+            public void onTimeout() {
+                values.add("timeout");
+            }
+        });
+        page.runUntilIdle();
+        assertEquals("[timeout]", values.toString());
+        assertTrue(page.now() >= 500);
+        // the async section of the call is ended
+        String trace = tracer.toTraceJson();
+        assertTrue(trace, trace.contains("{\"name\":\"js missing\",\"cat\":\"dsbridge\",\"ph\":\"e\""));
+    }
+
+    @Test
+    public void callsBatches() {
+        page.evaluate("results = dsBridge.callBatch([['add', {a: 2, b: 2}], ['missing'],"
+                + "['countdown', 1, function (v) { results.push('cb' + v); }]]);");
+        page.runUntilIdle();
+        assertEquals("[4,null,null,\"cb1\",\"cb0\"]", results());
+    }
+
+    @Test
+    public void batchesAsynchronousCallsAutomatically() {
+        // records what crosses the bridge
+        page.evaluate("var real = _dsbridge, sent = [];"
+                + "_dsbridge = {callbackTable: real.callbackTable,"
+                + "    call: function (m, a) { sent.push(m); return real.call(m, a); },"
+                + "    callBatch: function (c) { sent.push(JSON.parse(c).length); return real.callBatch(c); }};"
+                + "dsBridge.setAutoBatch(true);"
+                + "dsBridge.call('countdown', 1, function (v) { results.push('a' + v); });"
+                + "dsBridge.call('countdown', 2, function (v) { results.push('b' + v); });");
+        page.runUntilIdle();
+        assertEquals("[2]", String.valueOf(page.evaluate("JSON.stringify(sent)")));
+        assertEquals("[\"a1\",\"a0\",\"b2\",\"b1\",\"b0\"]", results());
+    }
+
+    @Test
+    public void bindsArgumentsWithTheStreamingCodec() {
+        page.setBridgeCodec(new StreamingJsonCodec());
+        page.addJavascriptObject(new TypedApi(), "typed");
+        page.evaluate("var moved = dsBridge.call('typed.move', {x: 1, y: 2});"
+                + "results.push(moved.x, moved.y, dsBridge.call('add', {a: 1, b: 2}));"
+                + "dsBridge.call('typed.sum', [1, 2, 3], function (v) { results.push(v); });");
+        page.runUntilIdle();
+        assertEquals("[2,2,3,6]", results());
+    }
+
+    @Test
+    public void uploadsLargeArgumentsInChunks() throws Exception {
+        page.addJavascriptObject(new StreamApi(), "stream");
+        page.evaluate("dsBridge.setUploadThreshold(16, 5);"
+                + "var big = {text: 'abcd\\ud83d\\ude00efghijklmnop', n: [1, 2, 3]};"
+                + "results.push(dsBridge.call('stream.length', big) == JSON.stringify(big).length,"
+                + "dsBridge.call('stream.length', 'small'),"
+                + "dsBridge.call('util.echo.echo', big).text == big.text);"
+                + "dsBridge.call('stream.first', big, function (v) { results.push(v); });");
+        for (int i = 0; i < 100 && page.getUploadCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        page.runUntilIdle();
+        assertEquals("[true,7,true,123]", results());
+        assertEquals(0, page.getUploadCount());
+    }
+
+    @Test
+    public void exportsTheTraceOfBothSides() throws Exception {
+        // the performance timeline of a browser
+        page.evaluate("var marks = [];"
+                + "window.performance = {now: function () { return Date.now(); }, timeOrigin: 0,"
+                + "    mark: function (name) { marks.push(name); },"
+                + "    clearMarks: function (name) { marks = marks.filter(function (m) { return m != name; }); }};");
+        page.setBridgeTracer(new BridgeTracer());
+        page.evaluate("dsBridge.setTracing(); dsBridge.call('countdown', 1, function (v) { results.push(v); });");
+        page.runUntilIdle();
+        assertEquals("[1,0]", results());
+        assertEquals(4, ((Number) page.evaluate("marks.length")).intValue());
+        final List<String> traces = new ArrayList<>();
+        page.exportTrace(new OnReturnValue<String>() {
+            @Override
+            public void onValue(String trace) {
+                traces.add(trace);
+            }
+        });
+        page.runUntilIdle();
+        JSONArray events = new JSONObject(traces.get(0)).getJSONArray("traceEvents");
+        List<String> traced = new ArrayList<>();
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.getJSONObject(i);
+            JSONObject args = event.optJSONObject("args");
+            if (args != null && "j1".equals(args.optString("traceId"))) {
+                traced.add(event.getInt("pid") + " " + event.getString("name") + " " + event.getString("ph"));
+            }
+        }
+        assertTrue(traced.toString(), traced.contains(BridgeTracer.PID_JAVASCRIPT + " js call countdown X"));
+        assertTrue(traced.toString(), traced.contains(BridgeTracer.PID_JAVA + " java countdown X"));
+        // the marks of the exported events are cleared
+        assertEquals(0, ((Number) page.evaluate("marks.length")).intValue());
+    }
+
+    @Test
+    public void distributesTheCurrentScript() throws Exception {
+        // updateBridgeScripts of :dsbridge must run after npm/index.js changes
+        File index = HeadlessBridge.defaultScript();
+        String script = new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8)
+                .replaceAll("module\\.exports\\s*=\\s*bridge;?", "");
+        String dist = new String(Files.readAllBytes(new File(index.getParentFile(), "dist/dsbridge.js").toPath()),
+                StandardCharsets.UTF_8);
+        assertEquals("(function () {\n" + script + "\n})();\n", dist);
+    }
+
+    @Test
+    public void worksWithTheLegacyScript() throws Exception {
+        // the dist/dsbridge.js of 3.1.4, which pages still load from a CDN
+        File legacy = new File("src/test/resources/legacy-dsbridge.js");
+        page = new HeadlessBridge(legacy);
+        page.addJavascriptObject(new TestApi(), null);
+        page.evaluate(PAGE);
+        page.runUntilIdle();
+        page.evaluate("dsBridge.call('countdown', 2, function (v) { results.push(v); });");
+        final List<Object> values = new ArrayList<>();
+        page.callHandler("addValue", new Object[]{"a", "b"}, new OnReturnValue<Object>() {
+            @Override
+            public void onValue(Object retValue) {
+                values.add(retValue);
+            }
+        });
+        page.runUntilIdle();
+        assertEquals("[2,1,0]", results());
+        assertEquals("[ab]", values.toString());
+    }
+}
@@ -0,0 +1,305 @@
+package wendu.dsbridge.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code wendu.dsbridge.special.JavascriptDispatcher} for every class which declares
+ * methods with {@code @JavascriptInterface} annotation, so that DWebView can call the APIs of the
+ * class directly instead of using reflection.
+ * <p>
+ * Only the methods that follow the dsBridge API signature are dispatched:
+ * {@code public any handler(T msg)} and {@code public void handler(T arg, CompletionHandler handler)},
+ * where {@code T} is {@code Object} or another class the {@code BridgeCodec} binds the argument to.
+ * Classes that can't be referenced from another class of the same package (private, local or
+ * anonymous classes) are skipped, DWebView will use reflection for them.
+ * <p>
+ * The processor is registered as an isolating Gradle incremental processor: a dispatcher is
+ * generated from its class and the supertypes of the class only, and has the class as its
+ * originating element.
+ */
+public class JavascriptDispatcherProcessor extends AbstractProcessor {
+    static final String JAVASCRIPT_INTERFACE = "android.webkit.JavascriptInterface";
+    static final String COMPLETION_HANDLER = "wendu.dsbridge.special.CompletionHandler";
+    static final String DISPATCHER = "wendu.dsbridge.special.JavascriptDispatcher";
+    static final String JAVASCRIPT_THREAD = "wendu.dsbridge.special.JavascriptThread";
+    static final String SUFFIX = "_JsDispatcher";
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(JAVASCRIPT_INTERFACE);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(JAVASCRIPT_INTERFACE);
+        if (annotation == null) {
+            return false;
+        }
+        Set<TypeElement> classes = new LinkedHashSet<>();
+        for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+            if (element.getKind() == ElementKind.METHOD
+                    && element.getEnclosingElement() instanceof TypeElement) {
+                classes.add((TypeElement) element.getEnclosingElement());
+            }
+        }
+        for (TypeElement type : classes) {
+            if (!isSupported(type)) {
+                continue;
+            }
+            try {
+                generate(type);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Can't generate javascript dispatcher: " + e.getMessage(), type);
+            }
+        }
+        return false;
+    }
+
+    private boolean isSupported(TypeElement type) {
+        if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+            return false;
+        }
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+            TypeElement t = (TypeElement) e;
+            if (t.getNestingKind() != NestingKind.TOP_LEVEL && t.getNestingKind() != NestingKind.MEMBER) {
+                return false;
+            }
+            if (t.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        Map<String, ExecutableElement> synMethods = new LinkedHashMap<>();
+        Map<String, ExecutableElement> asynMethods = new LinkedHashMap<>();
+        for (Element member : processingEnv.getElementUtils().getAllMembers(type)) {
+            if (member.getKind() != ElementKind.METHOD || !isJavascriptInterface(member)) {
+                continue;
+            }
+            ExecutableElement method = (ExecutableElement) member;
+            Set<Modifier> modifiers = method.getModifiers();
+            if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC)) {
+                continue;
+            }
+            List<? extends VariableElement> params = method.getParameters();
+            String name = method.getSimpleName().toString();
+            if (params.size() == 2 && isArgument(argumentType(type, method))
+                    && isType(params.get(1).asType(), COMPLETION_HANDLER)) {
+                asynMethods.put(name, method);
+            } else if (params.size() == 1 && isArgument(argumentType(type, method))) {
+                synMethods.put(name, method);
+            }
+        }
+        // asynchronous implementation wins if both of them exist
+        synMethods.keySet().removeAll(asynMethods.keySet());
+
+        String packageName = getPackageName(type);
+        String targetName = type.getQualifiedName().toString();
+        String dispatcherName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        if (!packageName.isEmpty()) {
+            dispatcherName = dispatcherName.substring(packageName.length() + 1);
+        }
+        dispatcherName += SUFFIX;
+
+        StringBuilder threads = new StringBuilder();
+        for (Map.Entry<String, ExecutableElement> method : asynMethods.entrySet()) {
+            String thread = getThread(method.getValue());
+            if (thread != null) {
+                threads.append("            case \"").append(method.getKey()).append("\":\n")
+                        .append("                return ").append(literal(thread)).append(";\n");
+            }
+        }
+        String classThread = getThread(type);
+
+        StringBuilder cases = new StringBuilder();
+        for (Map.Entry<String, ExecutableElement> method : asynMethods.entrySet()) {
+            String name = method.getKey();
+            cases.append("            case \"").append(name).append("\":\n")
+                    .append("                ((").append(targetName).append(") target).")
+                    .append(name).append("(").append(argument(type, method.getValue())).append(", handler);\n")
+                    .append("                return null;\n");
+        }
+        for (Map.Entry<String, ExecutableElement> method : synMethods.entrySet()) {
+            String name = method.getKey();
+            cases.append("            case \"").append(name).append("\":\n");
+            if (method.getValue().getReturnType().getKind() == TypeKind.VOID) {
+                cases.append("                ((").append(targetName).append(") target).")
+                        .append(name).append("(").append(argument(type, method.getValue())).append(");\n")
+                        .append("                return null;\n");
+            } else {
+                cases.append("                return ((").append(targetName).append(") target).")
+                        .append(name).append("(").append(argument(type, method.getValue())).append(");\n");
+            }
+        }
+
+        String qualifiedName = packageName.isEmpty() ? dispatcherName : packageName + "." + dispatcherName;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+        Writer writer = file.openWriter();
+        try {
+            if (!packageName.isEmpty()) {
+                writer.write("package " + packageName + ";\n\n");
+            }
+            writer.write("/**\n"
+                    + " * Generated by dsbridge-compiler for {@link " + targetName + "}, do not edit.\n"
+                    + " */\n"
+                    + "public final class " + dispatcherName + " implements " + DISPATCHER + " {\n"
+                    + "    private static final String[] SYN_METHODS = {" + join(synMethods.keySet()) + "};\n"
+                    + "    private static final String[] ASYN_METHODS = {" + join(asynMethods.keySet()) + "};\n\n"
+                    + "    @Override\n"
+                    + "    public String[] synMethods() {\n"
+                    + "        return SYN_METHODS.clone();\n"
+                    + "    }\n\n"
+                    + "    @Override\n"
+                    + "    public String[] asynMethods() {\n"
+                    + "        return ASYN_METHODS.clone();\n"
+                    + "    }\n\n"
+                    + "    @Override\n"
+                    + "    public String threadOf(String methodName) {\n"
+                    + "        switch (methodName) {\n"
+                    + threads
+                    + "            default:\n"
+                    + "                return " + literal(classThread) + ";\n"
+                    + "        }\n"
+                    + "    }\n\n"
+                    + "    @Override\n"
+                    + "    @SuppressWarnings(\"unchecked\")\n"
+                    + "    public Object call(Object target, String methodName, Object arg, "
+                    + COMPLETION_HANDLER + " handler) throws Exception {\n"
+                    + "        switch (methodName) {\n"
+                    + cases
+                    + "            default:\n"
+                    + "                throw new NoSuchMethodException(methodName);\n"
+                    + "        }\n"
+                    + "    }\n"
+                    + "}\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return the value of the JavascriptThread annotation of the element, or null.
+     */
+    private String getThread(Element element) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+            if (!annotation.getQualifiedName().contentEquals(JAVASCRIPT_THREAD)) {
+                continue;
+            }
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> value
+                    : mirror.getElementValues().entrySet()) {
+                if (value.getKey().getSimpleName().contentEquals("value")) {
+                    return String.valueOf(value.getValue().getValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String literal(String value) {
+        if (value == null) {
+            return "null";
+        }
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /**
+     * @return the argument of the call of an API, cast to the erasure of its parameter type.
+     */
+    private String argument(TypeElement type, ExecutableElement method) {
+        TypeMirror erasure = processingEnv.getTypeUtils().erasure(argumentType(type, method));
+        if (isType(erasure, "java.lang.Object")) {
+            return "arg";
+        }
+        return "(" + erasure + ") arg";
+    }
+
+    /**
+     * @return the type of the first parameter of a method as a member of the class the generated
+     * code casts the target to, which is raw if the class is generic: {@code T} of a generic
+     * class is erased, and of a generic superclass it is the type argument.
+     */
+    private TypeMirror argumentType(TypeElement type, ExecutableElement method) {
+        DeclaredType target = (DeclaredType) processingEnv.getTypeUtils().erasure(type.asType());
+        ExecutableType member = (ExecutableType) processingEnv.getTypeUtils().asMemberOf(target, method);
+        return member.getParameterTypes().get(0);
+    }
+
+    /**
+     * @return true if the type can be the parameter of an API, a class, an array or a type variable.
+     */
+    private boolean isArgument(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED || type.getKind() == TypeKind.ARRAY
+                || type.getKind() == TypeKind.TYPEVAR;
+    }
+
+    private boolean isJavascriptInterface(Element element) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+            if (annotation.getQualifiedName().contentEquals(JAVASCRIPT_INTERFACE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isType(TypeMirror type, String name) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        TypeMirror erasure = processingEnv.getTypeUtils().erasure(type);
+        Element element = processingEnv.getTypeUtils().asElement(erasure);
+        return element instanceof TypeElement && ((TypeElement) element).getQualifiedName().contentEquals(name);
+    }
+
+    private static String join(Set<String> names) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append('"').append(name).append('"');
+        }
+        return sb.toString();
+    }
+
+    private String getPackageName(TypeElement type) {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        return pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+    }
+}
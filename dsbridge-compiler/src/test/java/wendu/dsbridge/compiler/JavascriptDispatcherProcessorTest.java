@@ -0,0 +1,302 @@
+package wendu.dsbridge.compiler;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compiles a sample API class with {@link JavascriptDispatcherProcessor} and checks that the
+ * generated dispatcher behaves the same as calling the APIs through reflection.
+ */
+public class JavascriptDispatcherProcessorTest {
+
+    private static final String[][] SOURCES = {
+            {"android/webkit/JavascriptInterface.java",
+                    "package android.webkit;\n"
+                            + "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)\n"
+                            + "public @interface JavascriptInterface {}\n"},
+            {"wendu/dsbridge/special/CompletionHandler.java",
+                    "package wendu.dsbridge.special;\n"
+                            + "public interface CompletionHandler<T> {\n"
+                            + "    void complete(T retValue);\n"
+                            + "    void complete();\n"
+                            + "    void setProgressData(T value);\n"
+                            + "}\n"},
+            {"wendu/dsbridge/special/JavascriptDispatcher.java",
+                    "package wendu.dsbridge.special;\n"
+                            + "public interface JavascriptDispatcher {\n"
+                            + "    String[] synMethods();\n"
+                            + "    String[] asynMethods();\n"
+                            + "    String threadOf(String methodName);\n"
+                            + "    Object call(Object target, String methodName, Object arg, CompletionHandler handler) throws Exception;\n"
+                            + "}\n"},
+            {"wendu/dsbridge/special/JavascriptThread.java",
+                    "package wendu.dsbridge.special;\n"
+                            + "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)\n"
+                            + "public @interface JavascriptThread {\n"
+                            + "    String MAIN = \"main\";\n"
+                            + "    String value();\n"
+                            + "}\n"},
+            {"sample/BaseApi.java",
+                    "package sample;\n"
+                            + "import android.webkit.JavascriptInterface;\n"
+                            + "public class BaseApi {\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public String inherited(Object arg) { return \"base \" + arg; }\n"
+                            + "}\n"},
+            {"sample/JsApi.java",
+                    "package sample;\n"
+                            + "import android.webkit.JavascriptInterface;\n"
+                            + "import wendu.dsbridge.special.CompletionHandler;\n"
+                            + "import wendu.dsbridge.special.JavascriptThread;\n"
+                            + "public class JsApi extends BaseApi {\n"
+                            + "    public int count;\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public String testSyn(Object msg) { return msg + \"[syn call]\"; }\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public int testInt(Object msg) { return ((String) msg).length(); }\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public void testVoid(Object msg) { count++; }\n"
+                            + "    @JavascriptInterface\n"
+                            + "    @JavascriptThread(\"io\")\n"
+                            + "    public void testAsyn(Object msg, CompletionHandler<String> handler) {\n"
+                            + "        handler.setProgressData(\"progress \" + msg);\n"
+                            + "        handler.complete(msg + \"[asyn call]\");\n"
+                            + "    }\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public String both(Object msg) { return \"syn\"; }\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public void both(Object msg, CompletionHandler handler) { handler.complete(\"asyn\"); }\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public String testThrow(Object msg) throws Exception { throw new IllegalStateException(\"boom\"); }\n"
+                            + "    public String testNever(Object msg) { return \"never\"; }\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public String testTyped(String msg) { return msg.toUpperCase(); }\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public int testArray(java.util.List<String>[] lists) { return lists.length; }\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public String wrongSignature(int msg) { return \"\" + msg; }\n"
+                            + "    @JavascriptThread(JavascriptThread.MAIN)\n"
+                            + "    public static class Nested {\n"
+                            + "        @JavascriptInterface\n"
+                            + "        public String nested(Object msg) { return \"nested \" + msg; }\n"
+                            + "        @JavascriptInterface\n"
+                            + "        public void nestedAsyn(Object msg, CompletionHandler handler) { handler.complete(msg); }\n"
+                            + "    }\n"
+                            + "    private static class Hidden {\n"
+                            + "        @JavascriptInterface\n"
+                            + "        public String hidden(Object msg) { return msg.toString(); }\n"
+                            + "    }\n"
+                            + "}\n"},
+            {"sample/GenericApi.java",
+                    "package sample;\n"
+                            + "import android.webkit.JavascriptInterface;\n"
+                            + "import wendu.dsbridge.special.CompletionHandler;\n"
+                            + "public class GenericApi<T> {\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public Object echo(T msg) { return msg; }\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public void first(java.util.List<T> values, CompletionHandler handler) { handler.complete(values.get(0)); }\n"
+                            + "}\n"},
+            {"sample/TextApi.java",
+                    "package sample;\n"
+                            + "import android.webkit.JavascriptInterface;\n"
+                            + "public class TextApi extends GenericApi<String> {\n"
+                            + "    @JavascriptInterface\n"
+                            + "    public String upper(String msg) { return msg.toUpperCase(); }\n"
+                            + "}\n"},
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ClassLoader classLoader;
+
+    @Before
+    public void compile() throws IOException {
+        File src = folder.newFolder("src");
+        File out = folder.newFolder("out");
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "-processor", JavascriptDispatcherProcessor.class.getName(),
+                "-processorpath", System.getProperty("java.class.path"),
+                "-s", src.getPath(), "-d", out.getPath()));
+        for (String[] source : SOURCES) {
+            File file = new File(src, source[0]);
+            file.getParentFile().mkdirs();
+            FileWriter writer = new FileWriter(file);
+            writer.write(source[1]);
+            writer.close();
+            args.add(file.getPath());
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        assertEquals(log.toString(), 0, compiler.run(null, log, log, args.toArray(new String[0])));
+        assertTrue(new File(src, "sample/JsApi_JsDispatcher.java").exists());
+        assertFalse(new File(src, "sample/JsApi$Hidden_JsDispatcher.java").exists());
+
+        classLoader = new URLClassLoader(new URL[]{out.toURI().toURL()}, null);
+    }
+
+    @Test
+    public void exposesSameMethodsAsReflection() throws Exception {
+        Object dispatcher = dispatcherFor("sample.JsApi");
+        Set<String> syn = new HashSet<>(Arrays.asList((String[]) invoke(dispatcher, "synMethods")));
+        Set<String> asyn = new HashSet<>(Arrays.asList((String[]) invoke(dispatcher, "asynMethods")));
+        assertEquals(new HashSet<>(Arrays.asList("testSyn", "testInt", "testVoid", "testThrow", "inherited",
+                "testTyped", "testArray")), syn);
+        assertEquals(new HashSet<>(Arrays.asList("testAsyn", "both")), asyn);
+    }
+
+    @Test
+    public void threadsAreResolvedFromAnnotations() throws Exception {
+        Object dispatcher = dispatcherFor("sample.JsApi");
+        assertEquals("io", threadOf(dispatcher, "testAsyn"));
+        assertNull(threadOf(dispatcher, "both"));
+        assertEquals("main", threadOf(dispatcherFor("sample.JsApi$Nested"), "nestedAsyn"));
+    }
+
+    @Test
+    public void synchronousCallsMatchReflection() throws Exception {
+        Class<?> cls = classLoader.loadClass("sample.JsApi");
+        Object target = cls.newInstance();
+        Object dispatcher = dispatcherFor("sample.JsApi");
+        for (String name : new String[]{"testSyn", "testInt", "testVoid", "inherited"}) {
+            Object expected = cls.getMethod(name, Object.class).invoke(target, "hello");
+            assertEquals(name, expected, call(dispatcher, target, name, "hello", null));
+        }
+        assertEquals(2, cls.getField("count").getInt(target));
+
+        assertEquals("HELLO", call(dispatcher, target, "testTyped", "hello", null));
+        assertEquals(2, call(dispatcher, target, "testArray", new List[2], null));
+
+        Object nested = classLoader.loadClass("sample.JsApi$Nested").newInstance();
+        assertEquals("nested hi", call(dispatcherFor("sample.JsApi$Nested"), nested, "nested", "hi", null));
+    }
+
+    @Test
+    public void asynchronousCallsMatchReflection() throws Exception {
+        Class<?> cls = classLoader.loadClass("sample.JsApi");
+        Class<?> handlerClass = classLoader.loadClass("wendu.dsbridge.special.CompletionHandler");
+        Object target = cls.newInstance();
+        Object dispatcher = dispatcherFor("sample.JsApi");
+        for (String name : new String[]{"testAsyn", "both"}) {
+            List<String> expected = new ArrayList<>();
+            cls.getMethod(name, Object.class, handlerClass).invoke(target, "hello", recorder(handlerClass, expected));
+            List<String> actual = new ArrayList<>();
+            assertNull(call(dispatcher, target, name, "hello", recorder(handlerClass, actual)));
+            assertEquals(name, expected, actual);
+        }
+    }
+
+    @Test
+    public void typeVariablesAreErased() throws Exception {
+        Object generic = classLoader.loadClass("sample.GenericApi").newInstance();
+        Object dispatcher = dispatcherFor("sample.GenericApi");
+        assertEquals(Arrays.asList("echo"), Arrays.asList((String[]) invoke(dispatcher, "synMethods")));
+        assertEquals(Arrays.asList("first"), Arrays.asList((String[]) invoke(dispatcher, "asynMethods")));
+        assertEquals("hi", call(dispatcher, generic, "echo", "hi", null));
+
+        // the type argument of the superclass
+        Object text = classLoader.loadClass("sample.TextApi").newInstance();
+        dispatcher = dispatcherFor("sample.TextApi");
+        assertEquals(new HashSet<>(Arrays.asList("upper", "echo")),
+                new HashSet<>(Arrays.asList((String[]) invoke(dispatcher, "synMethods"))));
+        assertEquals("hi", call(dispatcher, text, "echo", "hi", null));
+        assertEquals("HI", call(dispatcher, text, "upper", "hi", null));
+    }
+
+    @Test
+    public void exceptionsAndUnknownMethodsAreThrown() throws Exception {
+        Object target = classLoader.loadClass("sample.JsApi").newInstance();
+        Object dispatcher = dispatcherFor("sample.JsApi");
+        try {
+            call(dispatcher, target, "testThrow", "hello", null);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        for (String name : new String[]{"testNever", "wrongSignature", "missing"}) {
+            try {
+                call(dispatcher, target, name, "hello", null);
+                fail(name);
+            } catch (NoSuchMethodException e) {
+                assertEquals(name, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void registeredAsIsolatingProcessor() throws IOException {
+        InputStream in = JavascriptDispatcherProcessor.class.getResourceAsStream(
+                "/META-INF/gradle/incremental.annotation.processors");
+        assertNotNull(in);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            assertEquals(JavascriptDispatcherProcessor.class.getName() + ",isolating", reader.readLine());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Object dispatcherFor(String className) throws Exception {
+        return classLoader.loadClass(className + JavascriptDispatcherProcessor.SUFFIX).newInstance();
+    }
+
+    private Object call(Object dispatcher, Object target, String name, Object arg, Object handler) throws Exception {
+        Class<?> handlerClass = classLoader.loadClass("wendu.dsbridge.special.CompletionHandler");
+        Method call = dispatcher.getClass().getMethod("call", Object.class, String.class, Object.class, handlerClass);
+        try {
+            return call.invoke(dispatcher, target, name, arg, handler);
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+
+    private static Object threadOf(Object dispatcher, String name) throws Exception {
+        return dispatcher.getClass().getMethod("threadOf", String.class).invoke(dispatcher, name);
+    }
+
+    private static Object invoke(Object target, String name) throws Exception {
+        return target.getClass().getMethod(name).invoke(target);
+    }
+
+    private static Object recorder(Class<?> handlerClass, final List<String> events) {
+        return Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class[]{handlerClass},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        events.add(method.getName() + (args == null ? "" : Arrays.toString(args)));
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,7 @@
+# Dispatchers generated by dsbridge-compiler are looked up by the name of the API class
+# and created by reflection.
+-keep class * implements wendu.dsbridge.special.JavascriptDispatcher {
+    public <init>();
+}
+-if class **_JsDispatcher
+-keepnames class <1>
@@ -2,6 +2,13 @@ interface DSBridge {
   call (handlerName: string, args?: any, responseCallback?: (retValue: any) => void): any;
   call<T, R> (handlerName: string, args?: T, responseCallback?: (retValue: R) => void): R;
 
+  callBatch (calls: Array<[string, any?, ((retValue: any) => void)?]>): any[];
+  setAutoBatch (enable?: boolean): void;
+  setTracing (enable?: boolean): void;
+  setUploadThreshold (threshold: number, chunkSize?: number): void;
+  getCallbackCount (): number;
+  setCallbackTimeout (timeout: number): void;
+
   register (handlerName: string, handler: object | (() => any), async?: boolean): void;
   register<F> (handlerName: string, handler: F, async?: boolean): void;
 
@@ -1,19 +1,211 @@
 var bridge = {
     default:this,// for typescript
     call: function (method, args, cb) {
-        var ret = '';
+        var arg = this._arg(args, cb, method);
+        // queue asynchronous calls to send them with one bridge crossing
+        if (this._autoBatch && (arg._dscbid || arg._dscbstub) && this._canBatch()) {
+            this._queue.push({method: method, arg: arg});
+            if (this._queue.length == 1) {
+                window.Promise ? Promise.resolve().then(this._flush) : setTimeout(this._flush, 0);
+            }
+            return;
+        }
+        // keep the order with the queued calls
+        this._flush();
+        if (!arg._dstrace || !this._traced(method)) {
+            return this._send(method, this._encode(arg));
+        }
+        var name = "js call " + method;
+        var ts = this._traceBegin(name, arg._dstrace);
+        var ret = this._send(method, this._encode(arg));
+        this._traceEnd(name, arg._dstrace, ts);
+        return ret;
+    },
+    callBatch: function (calls) {
+        this._flush();
+        var items = [];
+        for (var i = 0; i < calls.length; i++) {
+            var c = calls[i];
+            items.push({method: c[0], arg: this._arg(c[1], c[2], c[0])});
+        }
+        return this._callBatch(items);
+    },
+    setAutoBatch: function (enable) {
+        this._autoBatch = enable !== false;
+    },
+    setUploadThreshold: function (threshold, chunkSize) {
+        this._uploadThreshold = threshold;
+        if (chunkSize > 1) this._uploadChunkSize = chunkSize;
+    },
+    setTracing: function (enable) {
+        this._tracing = enable !== false;
+    },
+    _autoBatch: false,
+    _queue: [],
+    _flush: function () {
+        var calls = bridge._queue;
+        if (!calls.length) return;
+        bridge._queue = [];
+        bridge._callBatch(calls);
+    },
+    _arg: function (args, cb, method) {
         if (typeof args == 'function') {
             cb = args;
             args = {};
         }
         var arg={data:args===undefined?null:args}
         if (typeof cb == 'function') {
-            var cbName = 'dscb' + window.dscb++;
-            window[cbName] = cb;
-            arg['_dscbstub'] = cbName;
+            var cbName;
+            if (this._hasCallbackTable()) {
+                arg._dscbid = this._addCallback(cb);
+                cbName = 'cb' + arg._dscbid;
+            } else {
+                // older native calls a global function
+                cbName = 'dscb' + window.dscb++;
+                window[cbName] = cb;
+                arg['_dscbstub'] = cbName;
+            }
         }
-        arg = JSON.stringify(arg)
-
+        if (this._tracing) {
+            // a call made while handling a traced call belongs to the same trace
+            var traceId = this._traceId || (this._traced(method) ? 'j' + (++this._traceIds) : null);
+            if (traceId) {
+                arg._dstrace = traceId;
+                if (cbName && this._traced(method)) {
+                    this._asyncTraces[cbName] = "js async " + method;
+                    this._traceAsync(this._asyncTraces[cbName], "b", traceId, "js:" + cbName);
+                }
+            }
+        }
+        return arg;
+    },
+    // the callbacks of asynchronous native APIs by id, native completes them with
+    // {_dscbid, data, complete} messages instead of calling global functions. The table is
+    // shared by the copies of dsbridge.js in the page, such as the injected one and a bundled
+    // one, since only the first copy handles the messages of native
+    _callbacks: window._dscallbacks || (window._dscallbacks = {table: {}, id: 0, count: 0}),
+    // a callback without any result for this long is dropped, 0 to keep them until they are
+    // completed: APIs such as subscriptions or pickers may answer much later, so it is opt-in
+    _callbackTimeout: 0,
+    _sweepScheduled: false,
+    _hasCallbackTable: function () {
+        return !!(window._dsbridge && _dsbridge.callbackTable);
+    },
+    _addCallback: function (cb) {
+        var callbacks = this._callbacks;
+        var id = ++callbacks.id;
+        callbacks.table[id] = {cb: cb, time: Date.now()};
+        callbacks.count++;
+        this._scheduleSweep();
+        return id;
+    },
+    _takeCallback: function (id, complete) {
+        var callbacks = this._callbacks;
+        var entry = callbacks.table[id];
+        if (!entry) return null;
+        if (complete) {
+            delete callbacks.table[id];
+            callbacks.count--;
+        } else {
+            entry.time = Date.now();
+        }
+        return entry.cb;
+    },
+    _scheduleSweep: function () {
+        if (this._sweepScheduled || !this._callbackTimeout) return;
+        this._sweepScheduled = true;
+        setTimeout(this._sweep, Math.min(60 * 1000, this._callbackTimeout));
+    },
+    // drop the callbacks native will never complete, such as the ones of missing APIs
+    _sweep: function () {
+        bridge._sweepScheduled = false;
+        var timeout = bridge._callbackTimeout;
+        if (!timeout) return;
+        var now = Date.now(), callbacks = bridge._callbacks;
+        for (var id in callbacks.table) {
+            if (now - callbacks.table[id].time >= timeout) {
+                delete callbacks.table[id];
+                callbacks.count--;
+            }
+        }
+        if (callbacks.count > 0) bridge._scheduleSweep();
+    },
+    getCallbackCount: function () {
+        return this._callbacks.count;
+    },
+    setCallbackTimeout: function (timeout) {
+        this._callbackTimeout = timeout;
+        this._scheduleSweep();
+    },
+    _tracing: false,
+    _traceId: null,
+    _traceIds: 0,
+    _traceEvents: [],
+    // the names of the performance marks, cleared with the events they belong to
+    _traceMarks: [],
+    _asyncTraces: {},
+    _traced: function (method) {
+        return this._tracing && method.indexOf("_dsb.") != 0;
+    },
+    // microseconds since the epoch, as the java events
+    _now: function () {
+        var p = window.performance;
+        if (p && p.now) {
+            var origin = p.timeOrigin || (p.timing && p.timing.navigationStart) || Date.now() - p.now();
+            return Math.round((origin + p.now()) * 1000);
+        }
+        return Date.now() * 1000;
+    },
+    _traceEvent: function (event, mark) {
+        var events = this._traceEvents;
+        if (events.length >= 10000) events.splice(0, 1000);
+        events.push(event);
+        this._mark("dsbridge " + mark + " " + event.traceId);
+    },
+    _mark: function (name) {
+        var p = window.performance;
+        if (p && p.mark) {
+            try {
+                p.mark(name);
+                if (this._traceMarks.push(name) > 20000) this._clearMarks(2000);
+            } catch (e) {
+            }
+        }
+    },
+    _clearMarks: function (count) {
+        var p = window.performance, marks = this._traceMarks.splice(0, count);
+        if (p && p.clearMarks) {
+            for (var i = 0; i < marks.length; i++) {
+                try {
+                    p.clearMarks(marks[i]);
+                } catch (e) {
+                }
+            }
+        }
+    },
+    _traceBegin: function (name, traceId) {
+        this._mark("dsbridge " + name + " begin " + traceId);
+        return this._now();
+    },
+    _traceEnd: function (name, traceId, ts) {
+        this._traceEvent({name: name, ph: "X", ts: ts, dur: this._now() - ts, traceId: traceId}, name + " end");
+    },
+    _traceAsync: function (name, ph, traceId, id) {
+        this._traceEvent({name: name, ph: ph, ts: this._now(), id: id, traceId: traceId},
+            name + (ph == "b" ? " begin" : " end"));
+    },
+    _withTrace: function (traceId, fn) {
+        if (!traceId) return fn();
+        var previous = this._traceId;
+        this._traceId = traceId;
+        try {
+            return fn();
+        } finally {
+            this._traceId = previous;
+        }
+    },
+    _send: function (method, arg) {
+        var ret = '';
         //if in webview that dsBridge provided, call!
         if(window._dsbridge){
            ret=  _dsbridge.call(method, arg)
@@ -23,13 +215,72 @@ var bridge = {
 
        return  JSON.parse(ret||'{}').data
     },
+    // an argument larger than this is uploaded in chunks before the call, so native doesn't
+    // get it as one string, 0 to always send it in the call
+    _uploadThreshold: 512 * 1024,
+    _uploadChunkSize: 256 * 1024,
+    _canUpload: function () {
+        return !!(window._dsbridge && _dsbridge.uploadChunk);
+    },
+    _encode: function (arg) {
+        if (!this._uploadThreshold || !this._canUpload()) {
+            return JSON.stringify(arg);
+        }
+        // the data is encoded once, the envelope is small
+        var json = JSON.stringify(arg.data), envelope = {};
+        for (var k in arg) {
+            if (k != 'data') envelope[k] = arg[k];
+        }
+        if (json !== undefined && json.length >= this._uploadThreshold) {
+            var id = this._upload(json);
+            if (id) {
+                envelope._dsupload = id;
+                return JSON.stringify(envelope);
+            }
+        }
+        var rest = JSON.stringify(envelope);
+        return '{"data":' + (json === undefined ? 'null' : json) + (rest.length > 2 ? ',' + rest.substring(1) : '}');
+    },
+    // @return the id of the upload, 0 if native can't store it
+    _upload: function (json) {
+        var id = _dsbridge.uploadBegin();
+        var i = 0;
+        while (id && i < json.length) {
+            var n = this._uploadChunkSize, c = json.charCodeAt(i + n - 1);
+            // keep a surrogate pair in one chunk
+            if (c >= 0xD800 && c <= 0xDBFF) n--;
+            if (!_dsbridge.uploadChunk(id, json.substr(i, n))) id = 0;
+            i += n;
+        }
+        return id;
+    },
+    _canBatch: function () {
+        return !!(window._dsbridge && _dsbridge.callBatch);
+    },
+    _callBatch: function (items) {
+        var ret = [];
+        if (this._canBatch()) {
+            var rets = JSON.parse(_dsbridge.callBatch(JSON.stringify(items)) || '[]');
+            for (var i = 0; i < items.length; i++) {
+                ret.push((rets[i] || {}).data);
+            }
+        } else {
+            for (var j = 0; j < items.length; j++) {
+                ret.push(this._send(items[j].method, this._encode(items[j].arg)));
+            }
+        }
+        return ret;
+    },
     register: function (name, fun, asyn) {
         var q = asyn ? window._dsaf : window._dsf
         if (!window._dsInit) {
             window._dsInit = true;
             //notify native that js apis register successfully on next event loop
             setTimeout(function () {
-                bridge.call("_dsb.dsinit");
+                var ret = bridge.call("_dsb.dsinit", {batch: true, port: true, wire: 2, manifest: true});
+                if (ret && ret.tracing) bridge._tracing = true;
+                if (ret && ret.manifest) bridge._manifest = ret.manifest;
+                if (ret && typeof ret.port == "string") bridge._portNonce = ret.port;
             }, 0)
         }
         if (typeof fun == "object") {
@@ -42,7 +293,33 @@ var bridge = {
         this.register(name, fun, true);
     },
     hasNativeMethod: function (name, type) {
-        return this.call("_dsb.hasNativeMethod", {name: name, type:type||"all"});
+        type = type || "all";
+        var manifest = this._manifest;
+        if (!manifest) {
+            return this.call("_dsb.hasNativeMethod", {name: name, type: type});
+        }
+        // answered from the manifest of native, without crossing the bridge
+        name = name.trim();
+        var pos = name.lastIndexOf('.');
+        var methods = manifest[pos == -1 ? "" : name.substring(0, pos)];
+        var method = name.substring(pos + 1);
+        var kind = methods && methods.hasOwnProperty(method) ? methods[method] : 0;
+        return !!kind && (type == "all" || (type == "syn" && kind == 1) || (type == "asyn" && kind == 2));
+    },
+    // the namespaces of native with their methods, 1 for synchronous and 2 for asynchronous ones
+    _manifest: null,
+    // the nonce of the message port native posts after dsinit, null once it is taken
+    _portNonce: null,
+    _updateManifest: function (namespaces, replace) {
+        var manifest = replace ? {} : this._manifest || {};
+        for (var namespace in namespaces) {
+            if (namespaces[namespace]) {
+                manifest[namespace] = namespaces[namespace];
+            } else {
+                delete manifest[namespace];
+            }
+        }
+        this._manifest = manifest;
     },
     disableJavascriptDialogBlock: function (disable) {
         this.call("_dsb.disableJavascriptDialogBlock", {
@@ -65,25 +342,77 @@ var bridge = {
         close: function () {
             bridge.call("_dsb.closePage")
         },
+        _handleMessagesFromNative: function (messages) {
+            for (var i = 0; i < messages.length; i++) {
+                var message = messages[i];
+                var cbName = message._dscbid ? 'cb' + message._dscbid : message._dscbstub;
+                // one failing message must not stop the others, as if they were evaluated separately
+                try {
+                    if (message._dsmanifest) {
+                        // native objects were added or removed
+                        bridge._updateManifest(message._dsmanifest, message.replace);
+                    } else if (cbName) {
+                        // result of an asynchronous native API
+                        var cb = message._dscbid ? bridge._takeCallback(message._dscbid, message.complete)
+                            : window[cbName];
+                        if (message.complete) {
+                            if (!message._dscbid) delete window[cbName];
+                            var traceName = bridge._asyncTraces[cbName];
+                            if (traceName) {
+                                delete bridge._asyncTraces[cbName];
+                                bridge._traceAsync(traceName, "e", message._dstrace, "js:" + cbName);
+                            }
+                        }
+                        if (cb) bridge._withTrace(message._dstrace, function () {
+                            cb(message.data);
+                        });
+                    } else {
+                        this._handleMessageFromNative(message);
+                    }
+                } catch (e) {
+                    setTimeout(function () {
+                        throw e;
+                    }, 0)
+                }
+            }
+        },
         _handleMessageFromNative: function (info) {
-            var arg = JSON.parse(info.data);
+            // wire format v2 sends the arguments as an array instead of a JSON string
+            var arg = typeof info.data == "string" ? JSON.parse(info.data) : info.data;
             var ret = {
                 id: info.callbackId,
                 complete: true
             }
             var f = this._dsf[info.method];
             var af = this._dsaf[info.method]
+            // the calls made by the handler belong to the trace of the native call
+            var traceId = info._dstrace;
+            var traced = bridge._tracing && traceId;
+            var traceName = "js handler " + info.method;
             var callSyn = function (f, ob) {
-                ret.data = f.apply(ob, arg)
-                bridge.call("_dsb.returnValue", ret)
+                bridge._withTrace(traceId, function () {
+                    var ts = traced && bridge._traceBegin(traceName, traceId);
+                    ret.data = f.apply(ob, arg)
+                    if (traced) bridge._traceEnd(traceName, traceId, ts);
+                    bridge.call("_dsb.returnValue", ret)
+                })
             }
             var callAsyn = function (f, ob) {
+                if (traced) bridge._traceAsync(traceName, "b", traceId, "js:h" + info.callbackId);
                 arg.push(function (data, complete) {
                     ret.data = data;
                     ret.complete = complete!==false;
-                    bridge.call("_dsb.returnValue", ret)
+                    if (traced && ret.complete) {
+                        traced = false;
+                        bridge._traceAsync(traceName, "e", traceId, "js:h" + info.callbackId);
+                    }
+                    bridge._withTrace(traceId, function () {
+                        bridge.call("_dsb.returnValue", ret)
+                    })
+                })
+                bridge._withTrace(traceId, function () {
+                    f.apply(ob, arg)
                 })
-                f.apply(ob, arg)
             }
             if (f) {
                 callSyn(f, this._dsf);
@@ -115,6 +444,25 @@ var bridge = {
     for (var attr in ob) {
         window[attr] = ob[attr]
     }
+    // native may transfer a message port to post messages as data instead of evaluating scripts
+    // only the port posted by native, whose source is null, with the nonce of dsinit, and only once
+    window.addEventListener && window.addEventListener("message", function (e) {
+        var nonce = bridge._portNonce;
+        if (nonce && e.source == null && e.data === "_dsbridge_port:" + nonce && e.ports && e.ports[0]) {
+            bridge._portNonce = null;
+            e.ports[0].onmessage = function (m) {
+                window._handleMessagesFromNative(JSON.parse(m.data));
+            }
+        }
+    })
+    // the events of bridge tracing, collected by native to export them
+    bridge.register("_dsTraceEvents", function () {
+        var events = bridge._traceEvents;
+        bridge._traceEvents = [];
+        // the marks of the exported events
+        bridge._clearMarks(bridge._traceMarks.length);
+        return events;
+    })
     bridge.register("_hasJavascriptMethod", function (method, tag) {
          var name = method.split('.')
          if(name.length<2) {
@@ -0,0 +1,279 @@
+package wendu.dsbridge.special;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The arguments uploaded by dsbridge.js in chunks, when they are too large to be passed to
+ * {@code _dsbridge.call} at once. The chunks are written to a temporary file as they come, and
+ * the call names its upload with "_dsupload" instead of passing "data".
+ * <p>
+ * An API reads a large argument without having it in memory by declaring a {@link Reader}
+ * or an {@code android.util.JsonReader} parameter, it reads the JSON text of the argument.
+ * The reader is closed and the file deleted when a synchronous API returns, when an asynchronous
+ * API completes, or when a new page is loaded.
+ * <p>
+ * The uploads are bounded: an upload longer than the maximum length is dropped, no upload
+ * begins while the maximum number of them are live, and the uploads which are not written
+ * for the expiry time and never called are deleted when the next one begins.
+ */
+final class ArgumentUploads {
+
+    private static final String JSON_READER = "android.util.JsonReader";
+
+    static final long DEFAULT_MAX_LENGTH = 64 * 1024 * 1024;
+    static final int DEFAULT_MAX_UPLOADS = 16;
+    static final long DEFAULT_EXPIRY_MILLIS = 60 * 1000;
+
+    private static final class Upload {
+        final File file;
+        Writer writer;
+        Reader reader;
+        // the characters written
+        long length;
+        long writtenAt = uptimeMillis();
+
+        Upload(File file, Writer writer) {
+            this.file = file;
+            this.writer = writer;
+        }
+
+        synchronized void release() {
+            close(writer);
+            close(reader);
+            writer = null;
+            reader = null;
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Creates the readers of Android without loading the class in the JVM.
+     */
+    private static final class AndroidJson {
+        static Object newJsonReader(Reader reader) {
+            return new android.util.JsonReader(reader);
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadId = new AtomicInteger(0);
+    private volatile File directory;
+    private volatile long maxLength = DEFAULT_MAX_LENGTH;
+    private volatile int maxUploads = DEFAULT_MAX_UPLOADS;
+    private volatile long expiryMillis = DEFAULT_EXPIRY_MILLIS;
+
+    /**
+     * @param directory where the uploads are written, the temporary directory of the app if null.
+     */
+    void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param maxLength    the maximum length of an upload, in characters of its JSON text.
+     * @param maxUploads   the maximum number of uploads which are written or read at the same time.
+     * @param expiryMillis how long an upload which is not written any more waits for its call.
+     */
+    void setLimits(long maxLength, int maxUploads, long expiryMillis) {
+        this.maxLength = maxLength;
+        this.maxUploads = maxUploads;
+        this.expiryMillis = expiryMillis;
+    }
+
+    /**
+     * @return the id of a new upload, 0 if the file can't be created or too many uploads are live.
+     */
+    int begin() {
+        expire();
+        if (uploads.size() >= maxUploads) {
+            return 0;
+        }
+        try {
+            File file = File.createTempFile("dsbridge-upload", ".json", directory);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+            int id = uploadId.incrementAndGet();
+            uploads.put(id, new Upload(file, writer));
+            return id;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    /**
+     * @return false if the upload is unknown, too long or can't be written, then it is dropped.
+     */
+    boolean append(int id, String chunk) {
+        Upload upload = uploads.get(id);
+        if (upload == null) {
+            return false;
+        }
+        synchronized (upload) {
+            if (upload.writer == null) {
+                return false;
+            }
+            if (upload.length + chunk.length() <= maxLength) {
+                try {
+                    upload.writer.write(chunk);
+                    upload.length += chunk.length();
+                    upload.writtenAt = uptimeMillis();
+                    return true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        release(id);
+        return false;
+    }
+
+    /**
+     * Release the uploads which are not written any more and never called, such as the ones
+     * abandoned by a script which failed in the middle of an upload.
+     */
+    private void expire() {
+        long now = uptimeMillis();
+        List<Integer> expired = new ArrayList<>();
+        for (java.util.Map.Entry<Integer, Upload> entry : uploads.entrySet()) {
+            Upload upload = entry.getValue();
+            synchronized (upload) {
+                // the uploads being read belong to a running API
+                if (upload.writer != null && now - upload.writtenAt >= expiryMillis) {
+                    expired.add(entry.getKey());
+                }
+            }
+        }
+        for (Integer id : expired) {
+            release(id);
+        }
+    }
+
+    /**
+     * @return the uploaded argument bound to the type of the parameter of an API: a reader over
+     * the JSON text for a {@link Reader} or a JsonReader, the value decoded by the codec otherwise.
+     * @throws JSONException if the upload is unknown, or the argument can't be bound.
+     */
+    Object bind(int id, Type type, BridgeCodec codec) throws JSONException {
+        Upload upload = uploads.get(id);
+        if (upload == null) {
+            throw new JSONException("Unknown upload " + id);
+        }
+        Reader reader;
+        synchronized (upload) {
+            if (upload.writer == null) {
+                throw new JSONException("The upload " + id + " is already used");
+            }
+            try {
+                upload.writer.close();
+                upload.writer = null;
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(upload.file), "UTF-8"),
+                        64 * 1024);
+                upload.reader = reader;
+            } catch (IOException e) {
+                release(id);
+                throw new JSONException("Can't read the upload " + id + ": " + e.getMessage());
+            }
+        }
+        if (isReader(type)) {
+            return wrap(reader, type);
+        }
+        // the other types need the whole argument
+        try {
+            StringBuilder json = new StringBuilder((int) Math.min(upload.file.length() + 16, Integer.MAX_VALUE));
+            json.append("{\"data\":");
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                json.append(buffer, 0, n);
+            }
+            json.append('}');
+            return codec.decodeCall(json.toString()).data(type);
+        } catch (IOException e) {
+            throw new JSONException("Can't read the upload " + id + ": " + e.getMessage());
+        } finally {
+            release(id);
+        }
+    }
+
+    /**
+     * @return true if an API with the parameter type reads its argument from a reader.
+     */
+    static boolean isReader(Type type) {
+        return type == Reader.class || (type instanceof Class && JSON_READER.equals(((Class<?>) type).getName()));
+    }
+
+    /**
+     * @param json the JSON text of the argument.
+     * @return the argument of an API which reads it from a reader.
+     */
+    static Object wrap(Reader json, Type type) {
+        return type == Reader.class ? json : AndroidJson.newJsonReader(json);
+    }
+
+    /**
+     * @return the argument of an API which reads it from a reader, for an argument which is not uploaded.
+     */
+    static Object readerOf(BridgeCodec.Call call, Type type) throws JSONException {
+        Object data = call.data(Object.class);
+        StringBuilder json = new StringBuilder();
+        BridgeEncoder.appendValue(json, data);
+        return wrap(new StringReader(json.toString()), type);
+    }
+
+    /**
+     * Close the reader of the upload and delete it.
+     */
+    void release(int id) {
+        Upload upload = uploads.remove(id);
+        if (upload != null) {
+            upload.release();
+        }
+    }
+
+    /**
+     * Release all the uploads, the ones being written and the ones being read.
+     */
+    void clear() {
+        List<Integer> ids = new ArrayList<>(uploads.keySet());
+        for (Integer id : ids) {
+            release(id);
+        }
+    }
+
+    int size() {
+        return uploads.size();
+    }
+
+    private static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package wendu.dsbridge.special;
+
+/**
+ * A snapshot of the batching of native to javascript messages,
+ * see {@link DWebView#setMessageBatchingEnabled(boolean)}.
+ */
+public final class BatchStats {
+    private final long batchCount;
+    private final long messageCount;
+    private final int maxBatchSize;
+    private final int pendingCount;
+
+    BatchStats(long batchCount, long messageCount, int maxBatchSize, int pendingCount) {
+        this.batchCount = batchCount;
+        this.messageCount = messageCount;
+        this.maxBatchSize = maxBatchSize;
+        this.pendingCount = pendingCount;
+    }
+
+    /**
+     * @return how many times the batched messages were evaluated.
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * @return how many messages were delivered in batches.
+     */
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public float getAverageBatchSize() {
+        return batchCount == 0 ? 0 : (float) messageCount / batchCount;
+    }
+
+    /**
+     * @return the messages waiting for the next batch.
+     */
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchStats{batchCount=" + batchCount + ", messageCount=" + messageCount
+                + ", maxBatchSize=" + maxBatchSize + ", pendingCount=" + pendingCount + "}";
+    }
+}
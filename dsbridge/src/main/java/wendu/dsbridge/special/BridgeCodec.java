@@ -0,0 +1,84 @@
+package wendu.dsbridge.special;
+
+import org.json.JSONException;
+
+import java.lang.reflect.Type;
+
+/**
+ * Decodes the calls from javascript and encodes the values sent to javascript, see
+ * {@link DWebView#setBridgeCodec(BridgeCodec)}.
+ * <p>
+ * {@link OrgJsonCodec} is the default, it parses the calls with org.json and gives the APIs
+ * the values of org.json. {@link StreamingJsonCodec} reads the calls without building a tree
+ * and binds the argument to the type of the parameter of the API.
+ * <p>
+ * A codec is used from the threads of javascript and of the asynchronous APIs, it must be
+ * thread safe.
+ */
+public interface BridgeCodec {
+
+    /**
+     * A call from javascript: {@code {"data":..., "_dscbid":1, "_dscbstub":"dscb1", "_dstrace":"..."}}.
+     */
+    interface Call {
+        /**
+         * @return the name of the API for an item of callBatch, null otherwise.
+         */
+        String method();
+
+        /**
+         * @return the id of the callback in the callback table of dsbridge.js, 0 if there is none.
+         */
+        int callbackId();
+
+        /**
+         * @return the global function of the callback of older dsbridge.js, null if there is none.
+         */
+        String callback();
+
+        /**
+         * @return the trace id of a call made while tracing, null if there is none.
+         */
+        String traceId();
+
+        /**
+         * @return the id of the upload holding the argument, when dsbridge.js sent a large
+         * argument in chunks ("_dsupload" instead of "data"), 0 otherwise.
+         */
+        int uploadId();
+
+        /**
+         * @param type the type of the parameter of the API, {@code Object} for the values of org.json.
+         * @return the "data" argument bound to the type, null if there is none.
+         * @throws JSONException if the argument can't be bound to the type.
+         */
+        Object data(Type type) throws JSONException;
+
+        /**
+         * @return the length of the encoded call, for {@link BridgeMetrics}.
+         */
+        int length();
+    }
+
+    /**
+     * @param argStr the JSON object string passed to {@code _dsbridge.call}.
+     */
+    Call decodeCall(String argStr) throws JSONException;
+
+    /**
+     * @param callsStr the JSON array string passed to {@code _dsbridge.callBatch}, each item is an
+     *                 object with the "method" and the "arg" of {@link #decodeCall(String)}.
+     * @return the calls, null for an invalid item.
+     */
+    Call[] decodeBatch(String callsStr) throws JSONException;
+
+    /**
+     * Write a value returned by an API, or completing its callback, as JSON.
+     */
+    void encodeValue(Object value, StringBuilder out) throws JSONException;
+
+    /**
+     * Write the arguments of a javascript handler as a JSON array.
+     */
+    void encodeArguments(Object[] args, StringBuilder out) throws JSONException;
+}
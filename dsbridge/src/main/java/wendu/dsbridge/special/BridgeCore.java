@@ -0,0 +1,927 @@
+package wendu.dsbridge.special;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The bridge without the WebView: the java objects called by javascript and the dispatch of
+ * their calls, and the calls of javascript handlers waiting for the page and for their results.
+ * <p>
+ * {@link DWebView} adapts it to a WebView through a {@link Platform}. It doesn't use Android
+ * otherwise, so it can be tested and benchmarked on a JVM with a fake platform.
+ */
+final class BridgeCore {
+
+    /**
+     * The arguments of javascript calls are encoded as a JSON string inside the message.
+     */
+    static final int WIRE_V1 = 1;
+    /**
+     * The arguments of javascript calls are encoded as a JSON array inside the message.
+     */
+    static final int WIRE_V2 = 2;
+
+    /**
+     * What the bridge needs from the WebView and the main thread.
+     */
+    interface Platform {
+        boolean isMainThread();
+
+        /**
+         * Run the task in main thread later.
+         */
+        void post(Runnable task);
+
+        void postDelayed(Runnable task, long delayMillis);
+
+        /**
+         * Deliver a message to {@code window._handleMessagesFromNative} of the page, called in any thread.
+         */
+        void postMessage(String message);
+
+        /**
+         * Evaluate the script in the page, called in any thread.
+         */
+        void evaluateJavascript(String script);
+
+        /**
+         * Report an error of the bridge in debug mode.
+         */
+        void log(String message);
+    }
+
+    static class CallInfo {
+        // the arguments as a JSON array, encoded when the call is made
+        private final String data;
+        final int callbackId;
+        final String method;
+        int priority;
+        long queuedAt;
+        // when callHandler was called, 0 if BridgeMetrics is not set
+        long submittedAt;
+        String traceId;
+
+        CallInfo(BridgeCodec codec, String handlerName, int id, Object[] args) {
+            if (args == null) args = new Object[0];
+            data = encodeArguments(codec, args);
+            callbackId = id;
+            method = handlerName;
+        }
+
+        @Override
+        public String toString() {
+            return toString(WIRE_V1);
+        }
+
+        String toString(int wireVersion) {
+            // v1 encodes the arguments twice, as a JSON string inside the message
+            return BridgeEncoder.call(method, callbackId, data, wireVersion, traceId);
+        }
+
+        private static String encodeArguments(BridgeCodec codec, Object[] args) {
+            try {
+                return BridgeEncoder.arguments(codec, args);
+            } catch (JSONException e) {
+                // a number such as NaN can't be encoded
+                e.printStackTrace();
+                return "[]";
+            }
+        }
+    }
+
+    private static final BridgeCodec DEFAULT_CODEC = new OrgJsonCodec();
+
+    private final Platform platform;
+    private volatile BridgeCodec bridgeCodec = DEFAULT_CODEC;
+    private volatile BridgeRegistry bridgeRegistry = BridgeRegistry.getDefault();
+    /**
+     * The objects added to this bridge, over the ones of the registry. Replaced on every change,
+     * so it is read without locking. A null table hides the namespace of the registry.
+     */
+    private volatile Map<String, NativeMethodTable> javaScriptNamespaceInterfaces = Collections.emptyMap();
+    private final AtomicInteger callID = new AtomicInteger(0);
+    private final PendingCallbacks pendingCallbacks;
+    private final ArgumentUploads argumentUploads = new ArgumentUploads();
+    private volatile BridgeMetrics bridgeMetrics;
+    private volatile BridgeTracer bridgeTracer;
+    private volatile String asynCallThread = JavascriptThread.BRIDGE;
+    /**
+     * true if the dsbridge.js of the page handles messages with {@code window._handleMessagesFromNative}
+     */
+    private volatile boolean javascriptMessagesSupported = false;
+    private volatile int javascriptWireVersion = WIRE_V1;
+    /**
+     * true if the dsbridge.js of the page answers hasNativeMethod from the manifest of the java
+     * objects, which is then updated on every change.
+     */
+    private volatile boolean javascriptManifestSupported = false;
+
+    /**
+     * true from loading a page until its dsinit, only accessed in main thread.
+     */
+    private boolean waitingForDsinit = false;
+    private final StartupQueue startupQueue = new StartupQueue(1000, StartupOverflowPolicy.DROP_OLDEST);
+    private final Map<String, Integer> startupPriorities = new ConcurrentHashMap<>();
+    /**
+     * The calls submitted by {@link #callHandler(String, Object[], long, OnReturnValue) callHandler}
+     * from any thread, drained in main thread once per looper turn.
+     */
+    private final ConcurrentLinkedQueue<CallInfo> submittedCalls = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainSubmittedCalls();
+        }
+    };
+
+    BridgeCore(Platform platform) {
+        this.platform = platform;
+        pendingCallbacks = new PendingCallbacks(platform);
+        bridgeRegistry.attach(this);
+    }
+
+    static String[] parseNamespace(String method) {
+        int pos = method.lastIndexOf('.');
+        String namespace = "";
+        if (pos != -1) {
+            namespace = method.substring(0, pos);
+            method = method.substring(pos + 1);
+        }
+        return new String[]{namespace, method};
+    }
+
+    void addJavascriptObject(Object object, String namespace, String thread) {
+        if (namespace == null) {
+            namespace = "";
+        }
+        if (object != null) {
+            NativeMethodTable table = NativeMethodTable.build(object, thread);
+            synchronized (this) {
+                javaScriptNamespaceInterfaces = BridgeRegistry.with(javaScriptNamespaceInterfaces, namespace, table);
+            }
+            postManifest(namespace);
+        }
+    }
+
+    /**
+     * Remove the object of the namespace, the one of the registry too.
+     */
+    void removeJavascriptObject(String namespace) {
+        if (namespace == null) {
+            namespace = "";
+        }
+        synchronized (this) {
+            javaScriptNamespaceInterfaces = BridgeRegistry.with(javaScriptNamespaceInterfaces, namespace, null);
+        }
+        postManifest(namespace);
+    }
+
+    void onRegistryChanged(BridgeRegistry registry, String namespace) {
+        // the objects of the bridge override the ones of the registry
+        if (registry == bridgeRegistry && !javaScriptNamespaceInterfaces.containsKey(namespace)) {
+            postManifest(namespace);
+        }
+    }
+
+    /**
+     * @return the namespaces of the java objects, each one with its methods and their kind,
+     * as {@link NativeMethodTable#manifest()}.
+     */
+    JSONObject manifest() {
+        Map<String, NativeMethodTable> tables = new HashMap<>(bridgeRegistry.getAll());
+        tables.putAll(javaScriptNamespaceInterfaces);
+        JSONObject manifest = new JSONObject();
+        try {
+            for (Map.Entry<String, NativeMethodTable> table : tables.entrySet()) {
+                if (table.getValue() != null) {
+                    manifest.put(table.getKey(), table.getValue().manifest());
+                }
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return manifest;
+    }
+
+    /**
+     * Update the manifest of the page, which is sent by dsinit, after the change of a namespace.
+     */
+    private void postManifest(String namespace) {
+        if (!javascriptManifestSupported) {
+            return;
+        }
+        NativeMethodTable table = getNamespace(namespace);
+        try {
+            JSONObject namespaces = new JSONObject();
+            namespaces.put(namespace, table == null ? JSONObject.NULL : table.manifest());
+            JSONObject message = new JSONObject();
+            message.put("_dsmanifest", namespaces);
+            platform.postMessage(message.toString());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Replace the manifest of the page, after the change of the registry.
+     */
+    private void postFullManifest() {
+        if (!javascriptManifestSupported) {
+            return;
+        }
+        try {
+            JSONObject message = new JSONObject();
+            message.put("_dsmanifest", manifest());
+            message.put("replace", true);
+            platform.postMessage(message.toString());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private NativeMethodTable getNamespace(String namespace) {
+        Map<String, NativeMethodTable> tables = javaScriptNamespaceInterfaces;
+        NativeMethodTable table = tables.get(namespace);
+        if (table != null || tables.containsKey(namespace)) {
+            return table;
+        }
+        return bridgeRegistry.get(namespace);
+    }
+
+    /**
+     * @param type "all", "syn" or "asyn".
+     */
+    boolean hasNativeMethod(String methodName, String type) {
+        String[] nameStr = parseNamespace(methodName);
+        NativeMethodTable jsb = getNamespace(nameStr[0]);
+        if (jsb != null) {
+            NativeMethodTable.Entry entry = jsb.get(nameStr[1]);
+            if (entry != null && entry.exposed) {
+                boolean asyn = entry.asyn;
+                if ("all".equals(type) || (asyn && "asyn".equals(type) || (!asyn && "syn".equals(type)))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void PrintDebugInfo(String error) {
+        platform.log(error);
+    }
+
+    /**
+     * Call a java API from javascript.
+     *
+     * @param argStr a JSON object string, with the "data" argument and the callback of an
+     *               asynchronous API: "_dscbid", its id in the callback table of dsbridge.js, or
+     *               "_dscbstub", the global function of older versions.
+     * @return a JSON object string with the "code" and the "data" returned by a synchronous API.
+     */
+    String call(String methodName, String argStr) {
+        BridgeCodec.Call args;
+        try {
+            args = bridgeCodec.decodeCall(argStr);
+        } catch (JSONException e) {
+            // reported by the call
+            e.printStackTrace();
+            args = null;
+        }
+        return call(methodName, args, argStr.length());
+    }
+
+    /**
+     * Call many java APIs with one bridge crossing.
+     *
+     * @param callsStr a JSON array string, each item is an object with
+     *                 the "method" and the "arg" of {@link #call(String, String)}.
+     * @return a JSON array string of the return values of {@link #call(String, String)}
+     */
+    String callBatch(String callsStr) {
+        BridgeCodec.Call[] calls;
+        try {
+            calls = bridgeCodec.decodeBatch(callsStr);
+        } catch (JSONException e) {
+            PrintDebugInfo("The argument of callBatch must be a JSON array string!");
+            e.printStackTrace();
+            return "[]";
+        }
+        StringBuilder ret = new StringBuilder("[");
+        for (int i = 0; i < calls.length; i++) {
+            if (i > 0) {
+                ret.append(',');
+            }
+            BridgeCodec.Call call = calls[i];
+            if (call == null) {
+                PrintDebugInfo("Invalid callBatch item: " + i);
+                ret.append(BridgeEncoder.ERROR);
+                continue;
+            }
+            ret.append(call(call.method(), call, -1));
+        }
+        return ret.append(']').toString();
+    }
+
+    /**
+     * Start the upload of a large argument, dsbridge.js sends it in chunks with
+     * {@link #appendUpload(int, String)}, then makes the call with its id as "_dsupload".
+     *
+     * @return the id of the upload, 0 if it can't be stored, then the argument is sent in the call.
+     */
+    int beginUpload() {
+        return argumentUploads.begin();
+    }
+
+    /**
+     * @return false if the upload is unknown or can't be stored, then it is dropped.
+     */
+    boolean appendUpload(int id, String chunk) {
+        return argumentUploads.append(id, chunk);
+    }
+
+    /**
+     * @param args   null if the call can't be decoded.
+     * @param length the length of the encoded call, -1 to get it from the call.
+     */
+    private String call(String methodName, BridgeCodec.Call args, int length) {
+        BridgeTracer tracer = bridgeTracer;
+        if (tracer == null) {
+            return call(methodName, args, length, null, null);
+        }
+        String traceId = args == null ? null : args.traceId();
+        String previous = BridgeTracer.enter(traceId);
+        boolean traced = traceId != null && !methodName.trim().startsWith("_dsb.");
+        String section = "java " + methodName.trim();
+        long start = traced ? tracer.beginSection(section) : 0;
+        try {
+            return call(methodName, args, length, tracer, traceId);
+        } finally {
+            if (traced) {
+                tracer.endSection(section, traceId, start);
+            }
+            BridgeTracer.exit(previous);
+        }
+    }
+
+    private String call(String methodName, BridgeCodec.Call args, int length,
+                        final BridgeTracer tracer, final String traceId) {
+        String error = "Js bridge  called, but can't find a corresponded " +
+                "JavascriptInterface object , please check your code!";
+        final BridgeMetrics metrics = bridgeMetrics;
+        final BridgeCodec codec = bridgeCodec;
+        final String fullName = methodName.trim();
+        final long start = metrics != null ? System.nanoTime() : 0;
+        int argLength = length >= 0 ? length : (args != null ? args.length() : 0);
+        String[] nameStr = parseNamespace(fullName);
+        methodName = nameStr[1];
+        NativeMethodTable jsb = getNamespace(nameStr[0]);
+        // the calls are recorded once the method is resolved, javascript can make up any name
+        final NativeMethodTable.Entry entry = jsb != null ? jsb.get(methodName) : null;
+        if (entry == null || !entry.exposed) {
+            if (jsb == null) {
+                PrintDebugInfo(error);
+            } else if (entry == null) {
+                PrintDebugInfo("Not find method \"" + methodName + "\" implementation! please check if the  signature or namespace of the method is right ");
+            } else {
+                PrintDebugInfo("Method " + methodName + " is not invoked, since  " +
+                        "it is not declared with JavascriptInterface annotation! ");
+            }
+            if (args != null) {
+                argumentUploads.release(args.uploadId());
+            }
+            if (metrics != null) {
+                metrics.recordCall(BridgeMetrics.UNRESOLVED_METHOD, BridgeMetrics.JS_TO_NATIVE, argLength);
+            }
+            recordFailure(metrics, BridgeMetrics.UNRESOLVED_METHOD, BridgeMetrics.FAILURE_MISSING_METHOD);
+            return BridgeEncoder.ERROR;
+        }
+        if (metrics != null) {
+            metrics.recordCall(fullName, BridgeMetrics.JS_TO_NATIVE, argLength);
+        }
+        if (args == null) {
+            error = String.format("The argument of \"%s\" must be a JSON object string!", methodName);
+            PrintDebugInfo(error);
+            recordFailure(metrics, fullName, BridgeMetrics.FAILURE_BAD_JSON);
+            return BridgeEncoder.ERROR;
+        }
+        int callbackId = args.callbackId();
+        String callback = callbackId != 0 ? null : args.callback();
+        final int uploadId = args.uploadId();
+
+        Object arg;
+        try {
+            if (uploadId != 0) {
+                // a large argument which dsbridge.js uploaded in chunks
+                arg = argumentUploads.bind(uploadId, entry.argType, codec);
+            } else if (ArgumentUploads.isReader(entry.argType)) {
+                arg = ArgumentUploads.readerOf(args, entry.argType);
+            } else {
+                arg = args.data(entry.argType);
+            }
+        } catch (JSONException e) {
+            argumentUploads.release(uploadId);
+            error = String.format("The argument of \"%s\" can't be bound to its parameter: %s", methodName,
+                    e.getMessage());
+            PrintDebugInfo(error);
+            e.printStackTrace();
+            recordFailure(metrics, fullName, BridgeMetrics.FAILURE_BAD_JSON);
+            return BridgeEncoder.ERROR;
+        }
+
+        boolean asyn = entry.asyn;
+        Object retData;
+        try {
+            if (asyn) {
+                final String cb = callback;
+                final int cbId = callbackId;
+                final boolean hasCallback = cb != null || cbId != 0;
+                final boolean traced = tracer != null && traceId != null && hasCallback;
+                final String traceName = traced ? "java async " + fullName : null;
+                final String traceAsyncId = traced ? "java:" + traceId + ":" + (cb != null ? cb : cbId) : null;
+                if (traced) {
+                    tracer.beginAsync(traceName, traceAsyncId, traceId);
+                }
+                CompletionHandler handler = new CompletionHandler() {
+                    private final AtomicBoolean completed = new AtomicBoolean(false);
+
+                    @Override
+                    public void complete(Object retValue) {
+                        complete(retValue, true);
+                    }
+
+                    @Override
+                    public void complete() {
+                        complete(null, true);
+                    }
+
+                    @Override
+                    public void setProgressData(Object value) {
+                        complete(value, false);
+                    }
+
+                    private void complete(Object retValue, boolean complete) {
+                        if (complete) {
+                            // the API is done with the reader of its argument
+                            argumentUploads.release(uploadId);
+                        }
+                        try {
+                            if (!hasCallback) {
+                                return;
+                            }
+                            // the callback is deleted in javascript once completed
+                            if (complete ? completed.getAndSet(true) : completed.get()) {
+                                PrintDebugInfo("Method " + entry.name + " is already completed!");
+                                return;
+                            }
+                            if (traced && complete) {
+                                tracer.endAsync(traceName, traceAsyncId, traceId);
+                            }
+                            // a callback of the table of dsbridge.js is always completed by a message,
+                            // the script of the message is the same for every call
+                            if (javascriptMessagesSupported || cbId != 0) {
+                                String messageStr = BridgeEncoder.completion(codec, cbId, cb, retValue, complete, traceId);
+                                if (metrics != null) {
+                                    metrics.recordResult(fullName, BridgeMetrics.JS_TO_NATIVE, messageStr.length());
+                                }
+                                platform.postMessage(messageStr);
+                                return;
+                            }
+                            String script = BridgeEncoder.completionScript(codec, cb, retValue, complete);
+                            if (metrics != null) {
+                                metrics.recordResult(fullName, BridgeMetrics.JS_TO_NATIVE, script.length());
+                            }
+                            //Log.d(LOG_TAG, "complete " + script);
+                            platform.evaluateJavascript(script);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                String thread = jsb.threadOf(entry);
+                if (thread == null) {
+                    thread = asynCallThread;
+                }
+                if (JavascriptThread.BRIDGE.equals(thread)) {
+                    entry.invoke(jsb.target, arg, handler);
+                    if (metrics != null) {
+                        metrics.recordHandlerTime(fullName, BridgeMetrics.JS_TO_NATIVE, System.nanoTime() - start);
+                    }
+                } else {
+                    dispatchAsynCall(thread, entry, jsb.target, arg, uploadId, handler, metrics, fullName,
+                            start, tracer, traceId);
+                }
+            } else {
+                try {
+                    retData = entry.invoke(jsb.target, arg, null);
+                } finally {
+                    argumentUploads.release(uploadId);
+                }
+                String retStr = BridgeEncoder.result(codec, retData);
+                if (metrics != null) {
+                    metrics.recordHandlerTime(fullName, BridgeMetrics.JS_TO_NATIVE, System.nanoTime() - start);
+                    metrics.recordResult(fullName, BridgeMetrics.JS_TO_NATIVE, retStr.length());
+                }
+                return retStr;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            argumentUploads.release(uploadId);
+            error = String.format("Call failed：The parameter of \"%s\" in Java is invalid.", methodName);
+            PrintDebugInfo(error);
+            recordFailure(metrics, fullName, BridgeMetrics.FAILURE_INVOKE_EXCEPTION);
+            return BridgeEncoder.ERROR;
+        }
+        return BridgeEncoder.ERROR;
+    }
+
+    /**
+     * Run an asynchronous API in the thread declared by {@link JavascriptThread}.
+     */
+    private void dispatchAsynCall(String thread, final NativeMethodTable.Entry entry, final Object target,
+                                  final Object arg, final int uploadId, final CompletionHandler handler,
+                                  final BridgeMetrics metrics, final String fullName, final long start,
+                                  final BridgeTracer tracer, final String traceId) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                long dispatched = metrics != null ? System.nanoTime() : 0;
+                String previous = BridgeTracer.enter(traceId);
+                String section = "java invoke " + fullName;
+                long traceStart = tracer != null ? tracer.beginSection(section) : 0;
+                try {
+                    entry.invoke(target, arg, handler);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    argumentUploads.release(uploadId);
+                    PrintDebugInfo(String.format("Call failed：The parameter of \"%s\" in Java is invalid.", entry.name));
+                    recordFailure(metrics, fullName, BridgeMetrics.FAILURE_INVOKE_EXCEPTION);
+                } finally {
+                    if (tracer != null) {
+                        tracer.endSection(section, traceId, traceStart);
+                    }
+                    BridgeTracer.exit(previous);
+                }
+                if (metrics != null) {
+                    metrics.recordDispatchTime(fullName, BridgeMetrics.JS_TO_NATIVE, dispatched - start);
+                    metrics.recordHandlerTime(fullName, BridgeMetrics.JS_TO_NATIVE, System.nanoTime() - dispatched);
+                }
+            }
+        };
+        if (JavascriptThread.MAIN.equals(thread)) {
+            platform.post(task);
+            return;
+        }
+        // a call is never dropped, its callback must be completed: it runs in the calling
+        // thread if its executor can't take it
+        BridgeExecutor executor = BridgeExecutor.get(thread);
+        if (executor == null) {
+            PrintDebugInfo("Method " + entry.name + " runs in the JavaBridge thread, since the executor \""
+                    + thread + "\" is not registered! ");
+            task.run();
+        } else if (!executor.execute(task)) {
+            PrintDebugInfo("Method " + entry.name + " runs in the JavaBridge thread, since the executor \""
+                    + thread + "\" is saturated! ");
+            task.run();
+        }
+    }
+
+    private void recordFailure(BridgeMetrics metrics, String method, int failure) {
+        if (metrics != null) {
+            metrics.recordFailure(method, BridgeMetrics.JS_TO_NATIVE, failure);
+        }
+    }
+    /**
+     * Called by dsinit of dsbridge.js with the features it supports.
+     *
+     * @return the reply of dsinit: whether tracing is enabled, and the manifest of the java objects
+     * if the page supports it.
+     */
+    JSONObject setJavascriptFeatures(JSONObject features) {
+        javascriptMessagesSupported = features.optBoolean("batch");
+        javascriptWireVersion = features.optInt("wire", WIRE_V1);
+        // the manifest is updated with messages
+        boolean manifestSupported = javascriptMessagesSupported && features.optBoolean("manifest");
+        // set before the manifest is built, so a change made meanwhile is either in it or posted
+        // after the reply, posting it twice is harmless
+        javascriptManifestSupported = manifestSupported;
+        JSONObject reply = new JSONObject();
+        try {
+            reply.put("tracing", bridgeTracer != null);
+            if (manifestSupported) {
+                reply.put("manifest", manifest());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return reply;
+    }
+
+    /**
+     * Called by the returnValue of dsbridge.js with the result of a javascript handler.
+     */
+    void returnValue(final JSONObject jsonObject) {
+        // javascript returns in the trace of the call
+        final String traceId = BridgeTracer.getCurrentTraceId();
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                Object data = null;
+                try {
+                    int id = jsonObject.getInt("id");
+                    boolean isCompleted = jsonObject.getBoolean("complete");
+                    PendingCallbacks.Entry pending = isCompleted ? pendingCallbacks.remove(id)
+                            : pendingCallbacks.get(id);
+                    if (jsonObject.has("data")) {
+                        data = jsonObject.get("data");
+                    }
+                    if (pending != null) {
+                        BridgeMetrics metrics = bridgeMetrics;
+                        if (metrics != null) {
+                            metrics.recordResult(pending.method, BridgeMetrics.NATIVE_TO_JS,
+                                    String.valueOf(data).length());
+                            if (isCompleted && pending.startNanos != 0) {
+                                metrics.recordHandlerTime(pending.method, BridgeMetrics.NATIVE_TO_JS,
+                                        System.nanoTime() - pending.startNanos);
+                            }
+                        }
+                        if (isCompleted) {
+                            pending.endTrace();
+                        }
+                        BridgeTracer tracer = bridgeTracer;
+                        if (tracer == null || traceId == null) {
+                            pending.handler.onValue(data);
+                            return;
+                        }
+                        String previous = BridgeTracer.enter(traceId);
+                        String section = "java onValue " + pending.method;
+                        long start = tracer.beginSection(section);
+                        try {
+                            pending.handler.onValue(data);
+                        } finally {
+                            tracer.endSection(section, traceId, start);
+                            BridgeTracer.exit(previous);
+                        }
+                    }
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    <T> void callHandler(String method, Object[] args, long timeoutMillis, OnReturnValue<T> handler) {
+        CallInfo callInfo = new CallInfo(bridgeCodec, method, callID.incrementAndGet(), args);
+        if (bridgeMetrics != null) {
+            callInfo.submittedAt = System.nanoTime();
+        }
+        BridgeTracer tracer = bridgeTracer;
+        if (tracer != null && !"_dsTraceEvents".equals(method)) {
+            // a call made while handling a traced call belongs to the same trace
+            String traceId = BridgeTracer.getCurrentTraceId();
+            callInfo.traceId = traceId != null ? traceId : tracer.newTraceId();
+            if (handler != null) {
+                tracer.beginAsync("js " + method, "java:h" + callInfo.callbackId, callInfo.traceId);
+            }
+        } else {
+            tracer = null;
+        }
+        if (handler != null) {
+            pendingCallbacks.put(callInfo.callbackId, handler, timeoutMillis, method, callInfo.submittedAt,
+                    tracer, callInfo.traceId);
+        }
+
+        submittedCalls.offer(callInfo);
+        if (platform.isMainThread()) {
+            drainSubmittedCalls();
+        } else if (drainScheduled.compareAndSet(false, true)) {
+            platform.post(drainRunnable);
+        }
+    }
+
+    /**
+     * Must be called in main thread.
+     */
+    private void drainSubmittedCalls() {
+        drainScheduled.set(false);
+        // the timeouts of the handlers start
+        pendingCallbacks.drainAdded();
+        CallInfo info;
+        while ((info = submittedCalls.poll()) != null) {
+            if (waitingForDsinit) {
+                Integer priority = startupPriorities.get(info.method);
+                info.priority = priority != null ? priority : 0;
+                CallInfo dropped = startupQueue.add(info);
+                if (dropped != null) {
+                    platform.log("The startup queue is full, call to \"" + dropped.method + "\" is dropped!");
+                    dropCall(dropped);
+                }
+            } else {
+                dispatchJavascriptCall(info);
+            }
+        }
+    }
+
+    /**
+     * Dispatch the calls queued until the page is ready, must be called in main thread.
+     */
+    void dispatchStartupQueue() {
+        // the calls submitted before dsinit belong to the startup queue
+        drainSubmittedCalls();
+        if (waitingForDsinit) {
+            waitingForDsinit = false;
+            for (CallInfo info : startupQueue.drain()) {
+                dispatchJavascriptCall(info);
+            }
+        }
+    }
+
+    private void dispatchJavascriptCall(CallInfo info) {
+        String message = javascriptMessagesSupported ? info.toString(javascriptWireVersion) : info.toString();
+        BridgeMetrics metrics = bridgeMetrics;
+        if (metrics != null) {
+            metrics.recordCall(info.method, BridgeMetrics.NATIVE_TO_JS, message.length());
+            if (info.submittedAt != 0) {
+                metrics.recordDispatchTime(info.method, BridgeMetrics.NATIVE_TO_JS, System.nanoTime() - info.submittedAt);
+            }
+        }
+        if (javascriptMessagesSupported) {
+            platform.postMessage(message);
+        } else {
+            platform.evaluateJavascript(String.format("window._handleMessageFromNative(%s)", message));
+        }
+    }
+
+    /**
+     * Reset the state of the page before a new page is loaded, must be called in main thread.
+     * The calls made from now on wait for the dsinit of the new page.
+     */
+    void onNewPage() {
+        // the calls submitted before loading belong to the current page
+        drainSubmittedCalls();
+        javascriptMessagesSupported = false;
+        javascriptWireVersion = WIRE_V1;
+        javascriptManifestSupported = false;
+        List<CallInfo> discarded = startupQueue.reset();
+        waitingForDsinit = true;
+        // the uploads of the previous page are never called
+        argumentUploads.clear();
+        // the page they were queued for will never answer, notified once the new page is set up
+        // as the handlers may call javascript again
+        for (CallInfo info : discarded) {
+            dropCall(info);
+        }
+    }
+
+    /**
+     * Remove the handler of a call which is never dispatched, an {@link OnReturnValueOrTimeout}
+     * is notified as if the call timed out, and the trace section of the call is ended.
+     */
+    private void dropCall(CallInfo info) {
+        PendingCallbacks.Entry entry = pendingCallbacks.remove(info.callbackId);
+        if (entry != null) {
+            entry.timeout();
+        }
+    }
+
+    /**
+     * Remove the java objects except the one of {@code keepNamespace}, the registry, the pending
+     * calls and their handlers, and the startup priorities, and restore the default settings:
+     * the codec, the asynchronous call thread, the metrics, the tracer, the startup queue and the
+     * upload limits.
+     */
+    void reset(String keepNamespace) {
+        synchronized (this) {
+            NativeMethodTable kept = javaScriptNamespaceInterfaces.get(keepNamespace);
+            javaScriptNamespaceInterfaces = kept == null ? Collections.<String, NativeMethodTable>emptyMap()
+                    : Collections.singletonMap(keepNamespace, kept);
+        }
+        setBridgeRegistry(null);
+        submittedCalls.clear();
+        pendingCallbacks.clear();
+        startupPriorities.clear();
+        argumentUploads.clear();
+        bridgeCodec = DEFAULT_CODEC;
+        asynCallThread = JavascriptThread.BRIDGE;
+        bridgeMetrics = null;
+        bridgeTracer = null;
+        startupQueue.configure(1000, StartupOverflowPolicy.DROP_OLDEST);
+        argumentUploads.setLimits(ArgumentUploads.DEFAULT_MAX_LENGTH, ArgumentUploads.DEFAULT_MAX_UPLOADS,
+                ArgumentUploads.DEFAULT_EXPIRY_MILLIS);
+    }
+
+    void setBridgeRegistry(BridgeRegistry registry) {
+        if (registry == null) {
+            registry = BridgeRegistry.getDefault();
+        }
+        BridgeRegistry old = bridgeRegistry;
+        if (old == registry) {
+            return;
+        }
+        old.detach(this);
+        bridgeRegistry = registry;
+        registry.attach(this);
+        postFullManifest();
+    }
+
+    void setBridgeCodec(BridgeCodec codec) {
+        bridgeCodec = codec == null ? DEFAULT_CODEC : codec;
+    }
+
+    BridgeCodec getBridgeCodec() {
+        return bridgeCodec;
+    }
+
+    void setAsynCallThread(String thread) {
+        asynCallThread = thread == null ? JavascriptThread.BRIDGE : thread;
+    }
+
+    void setBridgeMetrics(BridgeMetrics metrics) {
+        bridgeMetrics = metrics;
+    }
+
+    BridgeMetrics getBridgeMetrics() {
+        return bridgeMetrics;
+    }
+
+    void setBridgeTracer(BridgeTracer tracer) {
+        bridgeTracer = tracer;
+    }
+
+    BridgeTracer getBridgeTracer() {
+        return bridgeTracer;
+    }
+
+    /**
+     * @see DWebView#exportTrace(OnReturnValue)
+     */
+    void exportTrace(final OnReturnValue<String> callback) {
+        final BridgeTracer tracer = bridgeTracer;
+        if (tracer == null) {
+            callback.onValue(null);
+            return;
+        }
+        callHandler("_dsTraceEvents", null, 1000, new OnReturnValueOrTimeout<Object>() {
+            @Override
+            public void onValue(Object events) {
+                callback.onValue(tracer.toTraceJson(events instanceof JSONArray ? (JSONArray) events : null));
+            }
+
+            @Override
+            public void onTimeout() {
+                callback.onValue(tracer.toTraceJson());
+            }
+        });
+    }
+
+    void setStartupQueue(int capacity, StartupOverflowPolicy policy) {
+        startupQueue.configure(capacity, policy);
+    }
+
+    void setStartupPriority(String handlerName, int priority) {
+        startupPriorities.put(handlerName, priority);
+    }
+
+    StartupStats getStartupStats() {
+        return startupQueue.getStats();
+    }
+
+    void setUploadDirectory(File directory) {
+        argumentUploads.setDirectory(directory);
+    }
+
+    void setUploadLimits(long maxLength, int maxUploads, long expiryMillis) {
+        argumentUploads.setLimits(maxLength, maxUploads, expiryMillis);
+    }
+
+    int getUploadCount() {
+        return argumentUploads.size();
+    }
+
+    int getPendingHandlerCount() {
+        return pendingCallbacks.getPendingCount();
+    }
+
+    long getExpiredHandlerCount() {
+        return pendingCallbacks.getExpiredCount();
+    }
+
+    private void runOnMainThread(Runnable runnable) {
+        if (platform.isMainThread()) {
+            runnable.run();
+            return;
+        }
+        platform.post(runnable);
+    }
+}
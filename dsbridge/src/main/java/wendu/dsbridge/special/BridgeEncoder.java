@@ -0,0 +1,242 @@
+package wendu.dsbridge.special;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes the JSON sent across the bridge without building {@link JSONObject}s: the constant
+ * responses are serialized once, and the others are written in a {@link StringBuilder} reused
+ * by the thread. The values are written by the {@link BridgeCodec} of the bridge,
+ * {@link #appendValue(StringBuilder, Object)} writes them as {@link JSONObject#put(String, Object)}
+ * and {@link JSONObject#toString()} of Android would do.
+ */
+final class BridgeEncoder {
+
+    /**
+     * The response of a call which failed, or of an asynchronous API.
+     */
+    static final String ERROR = "{\"code\":-1}";
+    /**
+     * The response of a synchronous API which returned null.
+     */
+    static final String OK_NULL = "{\"code\":0}";
+
+    // larger buffers are not kept, so a big result doesn't hold memory forever
+    private static final int MAX_KEPT_CAPACITY = 16 * 1024;
+
+    private static final class Buffer {
+        StringBuilder sb = new StringBuilder(256);
+        boolean busy;
+    }
+
+    private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private BridgeEncoder() {
+    }
+
+    /**
+     * @return the response of a synchronous API, {@code {"code":0,"data":...}}.
+     */
+    static String result(BridgeCodec codec, Object data) throws JSONException {
+        if (data == null) {
+            return OK_NULL;
+        }
+        StringBuilder sb = acquire();
+        try {
+            sb.append("{\"code\":0,\"data\":");
+            codec.encodeValue(data, sb);
+            return sb.append('}').toString();
+        } finally {
+            release(sb);
+        }
+    }
+
+    /**
+     * @return the message completing the callback of an asynchronous API, for
+     * {@code window._handleMessagesFromNative}.
+     * @param callbackId the id in the callback table of dsbridge.js, or 0 for {@code callback}.
+     */
+    static String completion(BridgeCodec codec, int callbackId, String callback, Object data,
+                             boolean complete, String traceId) throws JSONException {
+        StringBuilder sb = acquire();
+        try {
+            if (callbackId != 0) {
+                sb.append("{\"_dscbid\":").append(callbackId);
+            } else {
+                sb.append("{\"_dscbstub\":");
+                appendQuoted(sb, callback);
+            }
+            if (data != null) {
+                sb.append(",\"data\":");
+                codec.encodeValue(data, sb);
+            }
+            sb.append(",\"complete\":").append(complete);
+            if (traceId != null) {
+                sb.append(",\"_dstrace\":");
+                appendQuoted(sb, traceId);
+            }
+            return sb.append('}').toString();
+        } finally {
+            release(sb);
+        }
+    }
+
+    /**
+     * @return the script completing the callback of an asynchronous API for the dsbridge.js
+     * which doesn't handle messages.
+     */
+    static String completionScript(BridgeCodec codec, String callback, Object data, boolean complete)
+            throws JSONException {
+        StringBuilder sb = acquire();
+        try {
+            sb.append(callback).append("({\"code\":0");
+            if (data != null) {
+                sb.append(",\"data\":");
+                codec.encodeValue(data, sb);
+            }
+            sb.append("}.data);");
+            if (complete) {
+                sb.append("delete window.").append(callback);
+            }
+            return sb.toString();
+        } finally {
+            release(sb);
+        }
+    }
+
+    /**
+     * @return the arguments of a javascript handler as a JSON array.
+     */
+    static String arguments(BridgeCodec codec, Object[] args) throws JSONException {
+        StringBuilder sb = acquire();
+        try {
+            codec.encodeArguments(args, sb);
+            return sb.toString();
+        } finally {
+            release(sb);
+        }
+    }
+
+    /**
+     * @param data the arguments encoded by {@link #arguments(BridgeCodec, Object[])}.
+     * @return the message calling a javascript handler, with the arguments as an array for
+     * {@link BridgeCore#WIRE_V2} or as a JSON string for {@link BridgeCore#WIRE_V1}.
+     */
+    static String call(String method, int callbackId, String data, int wireVersion, String traceId) {
+        StringBuilder sb = acquire();
+        try {
+            sb.append("{\"method\":");
+            appendQuoted(sb, method);
+            sb.append(",\"callbackId\":").append(callbackId).append(",\"data\":");
+            if (wireVersion >= BridgeCore.WIRE_V2) {
+                sb.append(data);
+            } else {
+                appendQuoted(sb, data);
+            }
+            if (traceId != null) {
+                sb.append(",\"_dstrace\":");
+                appendQuoted(sb, traceId);
+            }
+            return sb.append('}').toString();
+        } finally {
+            release(sb);
+        }
+    }
+
+    static void appendValue(StringBuilder sb, Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            sb.append("null");
+        } else if (value instanceof String) {
+            appendQuoted(sb, (String) value);
+        } else if (value instanceof Boolean) {
+            sb.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            sb.append(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                throw new JSONException("Forbidden numeric value: " + value);
+            }
+            sb.append(JSONObject.numberToString((Number) value));
+        } else if (value instanceof JSONObject || value instanceof JSONArray) {
+            sb.append(value.toString());
+        } else {
+            appendQuoted(sb, value.toString());
+        }
+    }
+
+    static void appendQuoted(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append('\\').append(c);
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                default:
+                    // U+2028 and U+2029 end the line of a script before ES2019
+                    if (c <= 0x1F || c == 0x2028 || c == 0x2029) {
+                        appendUnicodeEscape(sb, c);
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+
+    private static void appendUnicodeEscape(StringBuilder sb, char c) {
+        String hex = "0123456789abcdef";
+        sb.append("\\u").append(hex.charAt((c >> 12) & 0xF)).append(hex.charAt((c >> 8) & 0xF))
+                .append(hex.charAt((c >> 4) & 0xF)).append(hex.charAt(c & 0xF));
+    }
+
+    /**
+     * @return the empty buffer of the thread, or a new one if it is in use by the caller, such as
+     * while a value is converted to a string.
+     */
+    private static StringBuilder acquire() {
+        Buffer buffer = buffers.get();
+        if (buffer.busy) {
+            return new StringBuilder(256);
+        }
+        buffer.busy = true;
+        buffer.sb.setLength(0);
+        return buffer.sb;
+    }
+
+    private static void release(StringBuilder sb) {
+        Buffer buffer = buffers.get();
+        if (buffer.sb == sb) {
+            buffer.busy = false;
+            if (sb.capacity() > MAX_KEPT_CAPACITY) {
+                buffer.sb = new StringBuilder(256);
+            }
+        }
+    }
+}
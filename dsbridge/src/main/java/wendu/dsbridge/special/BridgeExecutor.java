@@ -0,0 +1,141 @@
+package wendu.dsbridge.special;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A named, bounded thread pool to run asynchronous java APIs in, see {@link JavascriptThread}.
+ * <p>
+ * Executors are shared by all DWebViews of the process, and record their queue depth and
+ * how long the calls waited in the queue.
+ */
+public final class BridgeExecutor {
+    private static final Map<String, BridgeExecutor> executors = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private BridgeExecutor(final String name, int threads, int queueCapacity) {
+        this.name = name;
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "dsBridge-" + name + "-" + count.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Register an executor, the executor registered with the same name before is shut down.
+     *
+     * @param name          the name used by {@link JavascriptThread}, can't be
+     *                      {@link JavascriptThread#BRIDGE} or {@link JavascriptThread#MAIN}.
+     * @param threads       the max number of threads.
+     * @param queueCapacity the max number of calls waiting for a thread, the calls beyond it are rejected.
+     */
+    public static BridgeExecutor register(String name, int threads, int queueCapacity) {
+        if (JavascriptThread.BRIDGE.equals(name) || JavascriptThread.MAIN.equals(name)) {
+            throw new IllegalArgumentException("Reserved executor name: " + name);
+        }
+        BridgeExecutor executor = new BridgeExecutor(name, threads, queueCapacity);
+        BridgeExecutor old = executors.put(name, executor);
+        if (old != null) {
+            old.executor.shutdown();
+        }
+        return executor;
+    }
+
+    /**
+     * @return the executor registered with the name, or null.
+     */
+    public static BridgeExecutor get(String name) {
+        return executors.get(name);
+    }
+
+    /**
+     * @return false if the executor is full or shut down.
+     */
+    boolean execute(final Runnable runnable) {
+        final long enqueuedAt = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long wait = System.nanoTime() - enqueuedAt;
+                    totalWaitNanos.addAndGet(wait);
+                    long max;
+                    while (wait > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, wait)) {
+                    }
+                    executedCount.incrementAndGet();
+                    runnable.run();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of calls waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of calls running now.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of calls that have started running.
+     */
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    /**
+     * @return the number of calls rejected because the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return the average time the calls waited in the queue, in milliseconds.
+     */
+    public double getAverageWaitMillis() {
+        long count = executedCount.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * @return the longest time a call waited in the queue, in milliseconds.
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+}
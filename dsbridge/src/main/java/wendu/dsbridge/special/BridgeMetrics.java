@@ -0,0 +1,256 @@
+package wendu.dsbridge.special;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the calls across the bridge per method and direction, see
+ * {@link DWebView#setBridgeMetrics(BridgeMetrics)}. Nothing is recorded when it is not set.
+ * <p>
+ * Sizes and times are recorded in fixed power of two histograms, so recording a call doesn't
+ * allocate once the method was seen. One instance can be shared by DWebViews.
+ */
+public final class BridgeMetrics {
+
+    /**
+     * Javascript calls java APIs ({@code dsBridge.call}).
+     */
+    public static final int JS_TO_NATIVE = 0;
+    /**
+     * Java calls javascript handlers ({@link DWebView#callHandler(String, Object[], OnReturnValue)}).
+     */
+    public static final int NATIVE_TO_JS = 1;
+
+    /**
+     * The method the calls to missing java APIs are recorded for, so the names javascript makes
+     * up don't grow the metrics.
+     */
+    public static final String UNRESOLVED_METHOD = "<unresolved>";
+
+    /**
+     * The method doesn't exist or is not annotated with {@link android.webkit.JavascriptInterface}.
+     */
+    public static final int FAILURE_MISSING_METHOD = 0;
+    /**
+     * The argument is not a valid JSON object.
+     */
+    public static final int FAILURE_BAD_JSON = 1;
+    /**
+     * The method threw an exception.
+     */
+    public static final int FAILURE_INVOKE_EXCEPTION = 2;
+
+    /**
+     * Counts values in buckets of powers of two: bucket 0 counts 0, bucket {@code i} counts
+     * the values in {@code [2^(i-1), 2^i)}, the last bucket counts everything above.
+     */
+    public static final class Histogram {
+        public static final int BUCKETS = 32;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+            sum.addAndGet(value);
+        }
+
+        public long getCount(int bucket) {
+            return counts.get(bucket);
+        }
+
+        /**
+         * @return the exclusive upper bound of the bucket, {@link Long#MAX_VALUE} for the last one.
+         */
+        public static long getUpperBound(int bucket) {
+            return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        public long getTotalCount() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        public double getMean() {
+            long total = getTotalCount();
+            return total == 0 ? 0 : (double) sum.get() / total;
+        }
+
+        /**
+         * @param percentile in [0, 100]
+         * @return the upper bound of the bucket containing the percentile.
+         */
+        public long getPercentile(double percentile) {
+            long total = getTotalCount();
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) {
+                    return getUpperBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * The metrics of a method in one direction.
+     */
+    public static final class MethodMetrics {
+        private final String method;
+        private final int direction;
+        private final AtomicLong callCount = new AtomicLong();
+        private final AtomicLongArray failureCounts = new AtomicLongArray(3);
+        private final Histogram argBytes = new Histogram();
+        private final Histogram resultBytes = new Histogram();
+        private final Histogram handlerMicros = new Histogram();
+        private final Histogram dispatchMicros = new Histogram();
+
+        MethodMetrics(String method, int direction) {
+            this.method = method;
+            this.direction = direction;
+        }
+
+        /**
+         * @return the method with its namespace.
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        /**
+         * @return {@link #JS_TO_NATIVE} or {@link #NATIVE_TO_JS}.
+         */
+        public int getDirection() {
+            return direction;
+        }
+
+        public long getCallCount() {
+            return callCount.get();
+        }
+
+        /**
+         * @param failure {@link #FAILURE_MISSING_METHOD}, {@link #FAILURE_BAD_JSON} or
+         *                {@link #FAILURE_INVOKE_EXCEPTION}.
+         */
+        public long getFailureCount(int failure) {
+            return failureCounts.get(failure);
+        }
+
+        /**
+         * @return the sizes of the JSON arguments, in characters.
+         */
+        public Histogram getArgBytes() {
+            return argBytes;
+        }
+
+        /**
+         * @return the sizes of the JSON results, in characters, including progress data.
+         */
+        public Histogram getResultBytes() {
+            return resultBytes;
+        }
+
+        /**
+         * @return for {@link #JS_TO_NATIVE}, the time spent in the java API; for
+         * {@link #NATIVE_TO_JS}, the time from the call to the javascript result.
+         */
+        public Histogram getHandlerMicros() {
+            return handlerMicros;
+        }
+
+        /**
+         * @return for {@link #JS_TO_NATIVE}, the time from the JavaBridge thread to the thread the
+         * API runs in; for {@link #NATIVE_TO_JS}, the time from the call to its delivery in main thread.
+         */
+        public Histogram getDispatchMicros() {
+            return dispatchMicros;
+        }
+
+        @Override
+        public String toString() {
+            return (direction == JS_TO_NATIVE ? "js->native " : "native->js ") + method
+                    + "{calls=" + callCount.get()
+                    + ", failures=[" + failureCounts.get(0) + "," + failureCounts.get(1) + "," + failureCounts.get(2) + "]"
+                    + ", argBytes(mean)=" + (long) argBytes.getMean()
+                    + ", resultBytes(mean)=" + (long) resultBytes.getMean()
+                    + ", handlerMicros(p50/p99)=" + handlerMicros.getPercentile(50) + "/" + handlerMicros.getPercentile(99)
+                    + ", dispatchMicros(p50/p99)=" + dispatchMicros.getPercentile(50) + "/" + dispatchMicros.getPercentile(99)
+                    + "}";
+        }
+    }
+
+    private final ConcurrentHashMap<String, MethodMetrics> jsToNative = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, MethodMetrics> nativeToJs = new ConcurrentHashMap<>();
+
+    public List<MethodMetrics> getMethodMetrics() {
+        List<MethodMetrics> all = new ArrayList<>(jsToNative.values());
+        all.addAll(nativeToJs.values());
+        return all;
+    }
+
+    /**
+     * @return the metrics of the method, null if it was never called.
+     */
+    public MethodMetrics getMethodMetrics(String method, int direction) {
+        return (direction == JS_TO_NATIVE ? jsToNative : nativeToJs).get(method);
+    }
+
+    public void reset() {
+        jsToNative.clear();
+        nativeToJs.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("BridgeMetrics");
+        for (MethodMetrics metrics : getMethodMetrics()) {
+            sb.append("\n  ").append(metrics);
+        }
+        return sb.toString();
+    }
+
+    void recordCall(String method, int direction, int argBytes) {
+        MethodMetrics metrics = metrics(method, direction);
+        metrics.callCount.incrementAndGet();
+        metrics.argBytes.record(argBytes);
+    }
+
+    void recordFailure(String method, int direction, int failure) {
+        metrics(method, direction).failureCounts.incrementAndGet(failure);
+    }
+
+    void recordResult(String method, int direction, int resultBytes) {
+        metrics(method, direction).resultBytes.record(resultBytes);
+    }
+
+    void recordHandlerTime(String method, int direction, long nanos) {
+        metrics(method, direction).handlerMicros.record(nanos / 1000);
+    }
+
+    void recordDispatchTime(String method, int direction, long nanos) {
+        metrics(method, direction).dispatchMicros.record(nanos / 1000);
+    }
+
+    private MethodMetrics metrics(String method, int direction) {
+        ConcurrentHashMap<String, MethodMetrics> map = direction == JS_TO_NATIVE ? jsToNative : nativeToJs;
+        MethodMetrics metrics = map.get(method);
+        if (metrics == null) {
+            metrics = new MethodMetrics(method, direction);
+            MethodMetrics old = map.putIfAbsent(method, metrics);
+            if (old != null) {
+                metrics = old;
+            }
+        }
+        return metrics;
+    }
+}
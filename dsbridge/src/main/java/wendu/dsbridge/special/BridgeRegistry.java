@@ -0,0 +1,115 @@
+package wendu.dsbridge.special;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The java objects called by javascript which are shared by DWebViews, see
+ * {@link DWebView#setBridgeRegistry(BridgeRegistry)}. Register the APIs every page needs once,
+ * instead of adding them again to every DWebView.
+ * <p>
+ * The objects are resolved when they are added and the namespaces are kept in an immutable
+ * map which is replaced on every change, so the calls from javascript read it without locking.
+ * The objects added to a DWebView override the ones of its registry with the same namespace.
+ */
+public final class BridgeRegistry {
+
+    private static final BridgeRegistry DEFAULT = new BridgeRegistry();
+
+    private volatile Map<String, NativeMethodTable> namespaces = Collections.emptyMap();
+    /**
+     * The bridges using this registry, told about the changes to update the manifest of their page.
+     */
+    private final Set<BridgeCore> bridges = Collections.newSetFromMap(new WeakHashMap<BridgeCore, Boolean>());
+
+    /**
+     * @return the registry of all DWebViews whose registry is not set.
+     */
+    public static BridgeRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Add a java object to all the DWebViews using this registry, replacing the object of the namespace.
+     *
+     * @param namespace if empty, the object have no namespace.
+     */
+    public void addJavascriptObject(Object object, String namespace) {
+        addJavascriptObject(object, namespace, null);
+    }
+
+    /**
+     * @param thread the thread of the asynchronous APIs of the object without {@link JavascriptThread}
+     *               annotation, see {@link DWebView#addJavascriptObject(Object, String, String)}.
+     */
+    public void addJavascriptObject(Object object, String namespace, String thread) {
+        if (object == null) {
+            return;
+        }
+        if (namespace == null) {
+            namespace = "";
+        }
+        NativeMethodTable table = NativeMethodTable.build(object, thread);
+        synchronized (this) {
+            namespaces = with(namespaces, namespace, table);
+        }
+        notifyChanged(namespace);
+    }
+
+    public void removeJavascriptObject(String namespace) {
+        if (namespace == null) {
+            namespace = "";
+        }
+        synchronized (this) {
+            Map<String, NativeMethodTable> copy = new HashMap<>(namespaces);
+            copy.remove(namespace);
+            namespaces = Collections.unmodifiableMap(copy);
+        }
+        notifyChanged(namespace);
+    }
+
+    NativeMethodTable get(String namespace) {
+        return namespaces.get(namespace);
+    }
+
+    Map<String, NativeMethodTable> getAll() {
+        return namespaces;
+    }
+
+    void attach(BridgeCore bridge) {
+        synchronized (bridges) {
+            bridges.add(bridge);
+        }
+    }
+
+    void detach(BridgeCore bridge) {
+        synchronized (bridges) {
+            bridges.remove(bridge);
+        }
+    }
+
+    private void notifyChanged(String namespace) {
+        List<BridgeCore> attached;
+        synchronized (bridges) {
+            attached = new ArrayList<>(bridges);
+        }
+        for (BridgeCore bridge : attached) {
+            bridge.onRegistryChanged(this, namespace);
+        }
+    }
+
+    /**
+     * @return a copy of {@code map} with the table of the namespace, a null table is kept as a value.
+     */
+    static Map<String, NativeMethodTable> with(Map<String, NativeMethodTable> map, String namespace,
+                                               NativeMethodTable table) {
+        Map<String, NativeMethodTable> copy = new HashMap<>(map);
+        copy.put(namespace, table);
+        return Collections.unmodifiableMap(copy);
+    }
+}
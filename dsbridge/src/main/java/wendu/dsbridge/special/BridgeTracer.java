@@ -0,0 +1,266 @@
+package wendu.dsbridge.special;
+
+import android.os.Build;
+import android.os.Trace;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Traces the calls across the bridge, see {@link DWebView#setBridgeTracer(BridgeTracer)}.
+ * <p>
+ * Every call carries a trace id, a call made while handling a traced call, in java or in
+ * javascript, gets the same id, so a chain of calls through the bridge can be followed end to
+ * end. The java side is recorded in {@link Trace} sections and in a bounded buffer of events,
+ * the javascript side in {@code performance.mark} and a buffer of dsbridge.js, and
+ * {@link DWebView#exportTrace(OnReturnValue)} merges both into the Chrome trace event format,
+ * which can be opened in Perfetto or chrome://tracing.
+ * <p>
+ * On the JVM, such as in the headless bridge of the benchmarks, only the buffer is recorded.
+ */
+public final class BridgeTracer {
+
+    static final int PID_JAVA = 1;
+    static final int PID_JAVASCRIPT = 2;
+
+    private static final class Event {
+        final String name;
+        final char phase;
+        final long ts;
+        final long dur;
+        final long tid;
+        final String id;
+        final String traceId;
+
+        Event(String name, char phase, long ts, long dur, long tid, String id, String traceId) {
+            this.name = name;
+            this.phase = phase;
+            this.ts = ts;
+            this.dur = dur;
+            this.tid = tid;
+            this.id = id;
+            this.traceId = traceId;
+        }
+    }
+
+    /**
+     * The version of Android, 0 on the JVM where the Android classes are missing.
+     */
+    private static final int SDK_INT = sdkInt();
+
+    private static final ThreadLocal<String> currentTraceId = new ThreadLocal<>();
+
+    /**
+     * Calls {@link Trace} without loading the class on the JVM.
+     */
+    private static final class AndroidTrace {
+        static void beginSection(String name) {
+            Trace.beginSection(name);
+        }
+
+        static void endSection() {
+            Trace.endSection();
+        }
+
+        static void beginAsyncSection(String name, int cookie) {
+            Trace.beginAsyncSection(name, cookie);
+        }
+
+        static void endAsyncSection(String name, int cookie) {
+            Trace.endAsyncSection(name, cookie);
+        }
+    }
+
+    private final Event[] events;
+    private int next = 0;
+    private int size = 0;
+    private final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+    private final AtomicInteger traceIds = new AtomicInteger();
+    // timestamps are microseconds since the epoch, as in javascript
+    private final long originNanos = System.nanoTime();
+    private final long originMicros = System.currentTimeMillis() * 1000;
+
+    public BridgeTracer() {
+        this(10000);
+    }
+
+    /**
+     * @param capacity the max number of java events kept, the oldest ones are dropped.
+     */
+    public BridgeTracer(int capacity) {
+        events = new Event[Math.max(1, capacity)];
+    }
+
+    /**
+     * @return the trace id of the call being handled in the current thread, null if none.
+     */
+    public static String getCurrentTraceId() {
+        return currentTraceId.get();
+    }
+
+    private static int sdkInt() {
+        try {
+            return Build.VERSION.SDK_INT;
+        } catch (NoClassDefFoundError e) {
+            return 0;
+        }
+    }
+
+    String newTraceId() {
+        return "n" + traceIds.incrementAndGet();
+    }
+
+    /**
+     * Make {@code traceId} the current one of this thread.
+     *
+     * @return the previous one, to be passed to {@link #exit(String)}.
+     */
+    static String enter(String traceId) {
+        String previous = currentTraceId.get();
+        currentTraceId.set(traceId);
+        return previous;
+    }
+
+    static void exit(String previous) {
+        currentTraceId.set(previous);
+    }
+
+    long now() {
+        return originMicros + (System.nanoTime() - originNanos) / 1000;
+    }
+
+    /**
+     * Begin a section in the current thread, it must be ended in the same thread.
+     *
+     * @return the start of the section.
+     */
+    long beginSection(String name) {
+        if (SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            // section names are limited to 127 characters
+            AndroidTrace.beginSection(name.length() > 127 ? name.substring(0, 127) : name);
+        }
+        return now();
+    }
+
+    void endSection(String name, String traceId, long start) {
+        if (SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            AndroidTrace.endSection();
+        }
+        add(new Event(name, 'X', start, now() - start, currentThread(), null, traceId));
+    }
+
+    /**
+     * Begin a section which may end in another thread, such as the completion of an
+     * asynchronous API.
+     */
+    void beginAsync(String name, String id, String traceId) {
+        if (SDK_INT >= Build.VERSION_CODES.Q) {
+            AndroidTrace.beginAsyncSection(name, id.hashCode());
+        }
+        add(new Event(name, 'b', now(), 0, currentThread(), id, traceId));
+    }
+
+    void endAsync(String name, String id, String traceId) {
+        if (SDK_INT >= Build.VERSION_CODES.Q) {
+            AndroidTrace.endAsyncSection(name, id.hashCode());
+        }
+        add(new Event(name, 'e', now(), 0, currentThread(), id, traceId));
+    }
+
+    private long currentThread() {
+        Thread thread = Thread.currentThread();
+        long tid = thread.getId();
+        if (!threadNames.containsKey(tid)) {
+            threadNames.put(tid, thread.getName());
+        }
+        return tid;
+    }
+
+    private synchronized void add(Event event) {
+        events[next] = event;
+        next = (next + 1) % events.length;
+        if (size < events.length) {
+            size++;
+        }
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < events.length; i++) {
+            events[i] = null;
+        }
+        next = 0;
+        size = 0;
+    }
+
+    /**
+     * @return the java events in the Chrome trace event format.
+     */
+    public String toTraceJson() {
+        return toTraceJson(null);
+    }
+
+    /**
+     * @param javascriptEvents the events recorded by dsbridge.js, may be null.
+     */
+    String toTraceJson(JSONArray javascriptEvents) {
+        StringBuilder sb = new StringBuilder("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        appendMetadata(sb, "process_name", PID_JAVA, 0, "java");
+        for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+            sb.append(',');
+            appendMetadata(sb, "thread_name", PID_JAVA, thread.getKey(), thread.getValue());
+        }
+        synchronized (this) {
+            for (int i = 0; i < size; i++) {
+                Event event = events[(next - size + i + events.length) % events.length];
+                sb.append(',');
+                appendEvent(sb, event.name, event.phase, PID_JAVA, event.tid, event.ts, event.dur,
+                        event.id, event.traceId);
+            }
+        }
+        if (javascriptEvents != null) {
+            sb.append(',');
+            appendMetadata(sb, "process_name", PID_JAVASCRIPT, 0, "javascript");
+            for (int i = 0; i < javascriptEvents.length(); i++) {
+                JSONObject event = javascriptEvents.optJSONObject(i);
+                if (event == null) {
+                    continue;
+                }
+                String phase = event.optString("ph", "X");
+                sb.append(',');
+                appendEvent(sb, event.optString("name"), phase.charAt(0), PID_JAVASCRIPT, 1,
+                        event.optLong("ts"), event.optLong("dur"), event.optString("id", null),
+                        event.optString("traceId", null));
+            }
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static void appendMetadata(StringBuilder sb, String name, int pid, long tid, String value) {
+        sb.append("{\"name\":\"").append(name).append("\",\"ph\":\"M\",\"pid\":").append(pid)
+                .append(",\"tid\":").append(tid)
+                .append(",\"args\":{\"name\":").append(JSONObject.quote(value)).append("}}");
+    }
+
+    private static void appendEvent(StringBuilder sb, String name, char phase, int pid, long tid,
+                                    long ts, long dur, String id, String traceId) {
+        sb.append("{\"name\":").append(JSONObject.quote(name))
+                .append(",\"cat\":\"dsbridge\",\"ph\":\"").append(phase)
+                .append("\",\"pid\":").append(pid)
+                .append(",\"tid\":").append(tid)
+                .append(",\"ts\":").append(ts);
+        if (phase == 'X') {
+            sb.append(",\"dur\":").append(dur);
+        }
+        if (id != null) {
+            sb.append(",\"id\":").append(JSONObject.quote(id));
+        }
+        if (traceId != null) {
+            sb.append(",\"args\":{\"traceId\":").append(JSONObject.quote(traceId)).append('}');
+        }
+        sb.append('}');
+    }
+}
@@ -4,39 +4,53 @@ import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
+import android.content.MutableContextWrapper;
 import android.graphics.Bitmap;
 import android.net.Uri;
+import android.net.http.SslError;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.KeyEvent;
 import android.view.View;
+import android.webkit.ClientCertRequest;
 import android.webkit.ConsoleMessage;
 import android.webkit.CookieManager;
 import android.webkit.GeolocationPermissions;
+import android.webkit.HttpAuthHandler;
 import android.webkit.JavascriptInterface;
 import android.webkit.JsPromptResult;
 import android.webkit.JsResult;
 import android.webkit.PermissionRequest;
+import android.webkit.RenderProcessGoneDetail;
+import android.webkit.SafeBrowsingResponse;
+import android.webkit.SslErrorHandler;
 import android.webkit.ValueCallback;
 import android.webkit.WebChromeClient;
+import android.webkit.WebResourceError;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebStorage;
 import android.webkit.WebView;
+import android.webkit.WebViewClient;
 
 import androidx.annotation.Keep;
+import androidx.webkit.ScriptHandler;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
 import java.util.Map;
 
 /**
@@ -47,152 +61,121 @@ public class DWebView extends WebView {
     private static final String BRIDGE_NAME = "_dsbridge";
     private static final String LOG_TAG = "dsBridge";
     private static boolean isDebug = false;
-    private Map<String, Object> javaScriptNamespaceInterfaces = new HashMap<String, Object>();
     private String APP_CACHE_DIRNAME;
-    private int callID = 0;
     private WebChromeClient webChromeClient;
+    private WebViewClient webViewClient;
+    private static final String BRIDGE_SCRIPT_ASSET = "wendu/dsbridge/dsbridge.js";
+    private static volatile String bridgeScript;
+    private volatile boolean javascriptInjectionEnabled = false;
+    private ScriptHandler documentStartScript;
+    private volatile OfflinePackageManager offlinePackageManager;
 
     private volatile boolean alertBoxBlock = true;
     private JavascriptCloseWindowListener javascriptCloseWindowListener = null;
-    private ArrayList<CallInfo> callInfoList;
     private InnerJavascriptInterface innerJavascriptInterface = new InnerJavascriptInterface();
     private Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean messageBatchingEnabled = false;
+    private volatile boolean webMessagePortEnabled = false;
+    // true from a load API until its page starts, only accessed in main thread
+    private boolean pageLoadPending = false;
+    // the page loaded by recycle, the history is cleared once it is loaded, only accessed in main thread
+    private String recycleUrl;
+    private final JavascriptTransport evaluateJavascriptTransport = new JavascriptTransport() {
+        @Override
+        public void deliver(String messages) {
+            _evaluateJavascript("window._handleMessagesFromNative(" + messages + ")");
+        }
 
-    private class InnerJavascriptInterface {
+        @Override
+        public void close() {
+        }
+    };
+    private volatile JavascriptTransport javascriptTransport = evaluateJavascriptTransport;
+    private MessageBatcher messageBatcher = new MessageBatcher(mainHandler, new MessageBatcher.Sink() {
+        @Override
+        public void deliver(String messages) {
+            javascriptTransport.deliver(messages);
+        }
+    });
 
-        private void PrintDebugInfo(String error) {
-            if (isDebug) {
-                Log.e(LOG_TAG, "dsBridge DEBUG ERR MSG:\\n" + error.replaceAll("'", "\\\\'"));
-            }
+    private final BridgeCore bridgeCore = new BridgeCore(new BridgeCore.Platform() {
+        @Override
+        public boolean isMainThread() {
+            return Looper.getMainLooper() == Looper.myLooper();
         }
 
-        @Keep
-        @JavascriptInterface
-        public String call(String methodName, String argStr) {
-            String error = "Js bridge  called, but can't find a corresponded " +
-                    "JavascriptInterface object , please check your code!";
-            String[] nameStr = parseNamespace(methodName.trim());
-            methodName = nameStr[1];
-            Object jsb = javaScriptNamespaceInterfaces.get(nameStr[0]);
-            JSONObject ret = new JSONObject();
-            try {
-                ret.put("code", -1);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-            if (jsb == null) {
-                PrintDebugInfo(error);
-                return ret.toString();
-            }
-            Object arg = null;
-            Method method = null;
-            String callback = null;
+        @Override
+        public void post(Runnable task) {
+            mainHandler.post(task);
+        }
 
-            try {
-                JSONObject args = new JSONObject(argStr);
-                if (args.has("_dscbstub")) {
-                    callback = args.getString("_dscbstub");
-                }
-                if (args.has("data")) {
-                    arg = args.get("data");
-                }
-            } catch (JSONException e) {
-                error = String.format("The argument of \"%s\" must be a JSON object string!", methodName);
-                PrintDebugInfo(error);
-                e.printStackTrace();
-                return ret.toString();
-            }
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            mainHandler.postDelayed(task, delayMillis);
+        }
 
-            Class<?> cls = jsb.getClass();
-            boolean asyn = false;
-            try {
-                method = cls.getMethod(methodName,
-                        new Class[]{Object.class, CompletionHandler.class});
-                asyn = true;
-            } catch (Exception e) {
-                try {
-                    method = cls.getMethod(methodName, new Class[]{Object.class});
-                } catch (Exception ex) {
+        @Override
+        public void postMessage(String message) {
+            postMessageToJavascript(message);
+        }
 
-                }
-            }
+        @Override
+        public void evaluateJavascript(String script) {
+            DWebView.this.evaluateJavascript(script);
+        }
 
-            if (method == null) {
-                error = "Not find method \"" + methodName + "\" implementation! please check if the  signature or namespace of the method is right ";
-                PrintDebugInfo(error);
-                return ret.toString();
+        @Override
+        public void log(String message) {
+            if (isDebug) {
+                Log.e(LOG_TAG, "dsBridge DEBUG ERR MSG:\\n" + message.replaceAll("'", "\\\\'"));
             }
+        }
+    });
 
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1) {
-                JavascriptInterface annotation = method.getAnnotation(JavascriptInterface.class);
-                if (annotation == null) {
-                    error = "Method " + methodName + " is not invoked, since  " +
-                            "it is not declared with JavascriptInterface annotation! ";
-                    PrintDebugInfo(error);
-                    return ret.toString();
-                }
-            }
+    private class InnerJavascriptInterface {
 
-            Object retData;
-            method.setAccessible(true);
-            try {
-                if (asyn) {
-                    final String cb = callback;
-                    method.invoke(jsb, arg, new CompletionHandler() {
+        @Keep
+        @JavascriptInterface
+        public String call(String methodName, String argStr) {
+            return bridgeCore.call(methodName, argStr);
+        }
 
-                        @Override
-                        public void complete(Object retValue) {
-                            complete(retValue, true);
-                        }
+        /**
+         * Call many java APIs with one bridge crossing, see {@link BridgeCore#callBatch(String)}.
+         */
+        @Keep
+        @JavascriptInterface
+        public String callBatch(String callsStr) {
+            return bridgeCore.callBatch(callsStr);
+        }
 
-                        @Override
-                        public void complete() {
-                            complete(null, true);
-                        }
+        /**
+         * Tells dsbridge.js that the callbacks of asynchronous APIs can be kept in its table, they
+         * are completed with their "_dscbid" instead of global functions.
+         */
+        @Keep
+        @JavascriptInterface
+        public boolean callbackTable() {
+            return true;
+        }
 
-                        @Override
-                        public void setProgressData(Object value) {
-                            complete(value, false);
-                        }
+        /**
+         * Start the upload of an argument too large for {@link #call(String, String)}, see
+         * {@link BridgeCore#beginUpload()}.
+         */
+        @Keep
+        @JavascriptInterface
+        public int uploadBegin() {
+            return bridgeCore.beginUpload();
+        }
 
-                        private void complete(Object retValue, boolean complete) {
-                            try {
-                                JSONObject ret = new JSONObject();
-                                ret.put("code", 0);
-                                ret.put("data", retValue);
-                                //retValue = URLEncoder.encode(ret.toString(), "UTF-8").replaceAll("\\+", "%20");
-                                if (cb != null) {
-                                    //String script = String.format("%s(JSON.parse(decodeURIComponent(\"%s\")).data);", cb, retValue);
-                                    String script = String.format("%s(%s.data);", cb, ret.toString());
-                                    if (complete) {
-                                        script += "delete window." + cb;
-                                    }
-                                    //Log.d(LOG_TAG, "complete " + script);
-                                    evaluateJavascript(script);
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    });
-                } else {
-                    retData = method.invoke(jsb, arg);
-                    ret.put("code", 0);
-                    ret.put("data", retData);
-                    return ret.toString();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                error = String.format("Call failed：The parameter of \"%s\" in Java is invalid.", methodName);
-                PrintDebugInfo(error);
-                return ret.toString();
-            }
-            return ret.toString();
+        @Keep
+        @JavascriptInterface
+        public boolean uploadChunk(int id, String chunk) {
+            return bridgeCore.appendUpload(id, chunk);
         }
     }
 
-    Map<Integer, OnReturnValue> handlerMap = new HashMap<>();
-
     public interface JavascriptCloseWindowListener {
         /**
          * @return If true, close the current activity, otherwise, do nothing.
@@ -237,6 +220,7 @@ public class DWebView extends WebView {
     private void init() {
         if (isInEditMode()) return;
         APP_CACHE_DIRNAME = getContext().getFilesDir().getAbsolutePath() + "/webcache";
+        bridgeCore.setUploadDirectory(getContext().getCacheDir());
         WebSettings settings = getSettings();
         settings.setDomStorageEnabled(true);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -251,6 +235,7 @@ public class DWebView extends WebView {
         settings.setAppCachePath(APP_CACHE_DIRNAME);
         settings.setUseWideViewPort(true);
         super.setWebChromeClient(mWebChromeClient);
+        super.setWebViewClient(mWebViewClient);
         addInternalJavascriptObject();
         if (Build.VERSION.SDK_INT > Build.VERSION_CODES.JELLY_BEAN) {
             super.addJavascriptInterface(innerJavascriptInterface, BRIDGE_NAME);
@@ -260,16 +245,6 @@ public class DWebView extends WebView {
         }
     }
 
-    private String[] parseNamespace(String method) {
-        int pos = method.lastIndexOf('.');
-        String namespace = "";
-        if (pos != -1) {
-            namespace = method.substring(0, pos);
-            method = method.substring(pos + 1);
-        }
-        return new String[]{namespace, method};
-    }
-
     @Keep
     private void addInternalJavascriptObject() {
         addJavascriptObject(new Object() {
@@ -280,37 +255,7 @@ public class DWebView extends WebView {
                 JSONObject jsonObject = (JSONObject) args;
                 String methodName = jsonObject.getString("name").trim();
                 String type = jsonObject.getString("type").trim();
-                String[] nameStr = parseNamespace(methodName);
-                Object jsb = javaScriptNamespaceInterfaces.get(nameStr[0]);
-                if (jsb != null) {
-                    Class<?> cls = jsb.getClass();
-                    boolean asyn = false;
-                    Method method = null;
-                    try {
-                        method = cls.getMethod(nameStr[1],
-                                new Class[]{Object.class, CompletionHandler.class});
-                        asyn = true;
-                    } catch (Exception e) {
-                        try {
-                            method = cls.getMethod(nameStr[1], new Class[]{Object.class});
-                        } catch (Exception ex) {
-
-                        }
-                    }
-                    if (method != null) {
-                        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1) {
-                            JavascriptInterface annotation = method.getAnnotation(JavascriptInterface.class);
-                            if (annotation == null) {
-                                return false;
-                            }
-                        }
-                        if ("all".equals(type) || (asyn && "asyn".equals(type) || (!asyn && "syn".equals(type)))) {
-                            return true;
-                        }
-
-                    }
-                }
-                return false;
+                return bridgeCore.hasNativeMethod(methodName, type);
             }
 
             @Keep
@@ -322,6 +267,10 @@ public class DWebView extends WebView {
                         if (javascriptCloseWindowListener == null
                                 || javascriptCloseWindowListener.onClose()) {
                             Context context = getContext();
+                            // the activity of a pooled DWebView is wrapped
+                            if (context instanceof MutableContextWrapper) {
+                                context = ((MutableContextWrapper) context).getBaseContext();
+                            }
                             if (context instanceof Activity) {
                                 ((Activity) context).onBackPressed();
                             }
@@ -340,41 +289,34 @@ public class DWebView extends WebView {
 
             @Keep
             @JavascriptInterface
-            public void dsinit(Object jsonObject) {
+            public Object dsinit(Object jsonObject) throws JSONException {
+                JSONObject features = jsonObject instanceof JSONObject ? (JSONObject) jsonObject : new JSONObject();
+                JSONObject reply = bridgeCore.setJavascriptFeatures(features);
+                // the page only accepts the port posted with this nonce
+                final String portNonce = features.optBoolean("port") && webMessagePortEnabled
+                        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? WebMessagePortTransport.newNonce() : null;
+                if (portNonce != null) {
+                    reply.put("port", portNonce);
+                }
                 runOnMainThread(new Runnable() {
                     @Override
                     public void run() {
-                        DWebView.this.dispatchStartupQueue();
+                        if (portNonce != null) {
+                            JavascriptTransport transport = WebMessagePortTransport.connect(DWebView.this, portNonce);
+                            if (transport != null) {
+                                setJavascriptTransport(transport);
+                            }
+                        }
+                        bridgeCore.dispatchStartupQueue();
                     }
                 });
+                return reply;
             }
 
             @Keep
             @JavascriptInterface
-            public void returnValue(final Object obj) {
-                runOnMainThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        JSONObject jsonObject = (JSONObject) obj;
-                        Object data = null;
-                        try {
-                            int id = jsonObject.getInt("id");
-                            boolean isCompleted = jsonObject.getBoolean("complete");
-                            OnReturnValue handler = handlerMap.get(id);
-                            if (jsonObject.has("data")) {
-                                data = jsonObject.get("data");
-                            }
-                            if (handler != null) {
-                                handler.onValue(data);
-                                if (isCompleted) {
-                                    handlerMap.remove(id);
-                                }
-                            }
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
+            public void returnValue(Object obj) {
+                bridgeCore.returnValue((JSONObject) obj);
             }
 
         }, "_dsb");
@@ -398,6 +340,8 @@ public class DWebView extends WebView {
         runOnMainThread(new Runnable() {
             @Override
             public void run() {
+                // keep the order with the messages waiting for the next batch
+                messageBatcher.flush();
                 _evaluateJavascript(script);
             }
         });
@@ -417,7 +361,7 @@ public class DWebView extends WebView {
                 if (url != null && url.startsWith("javascript:")) {
                     DWebView.super.loadUrl(url);
                 } else {
-                    callInfoList = new ArrayList<>();
+                    onLoadPage();
                     DWebView.super.loadUrl(url);
                 }
             }
@@ -439,7 +383,7 @@ public class DWebView extends WebView {
                 if (url != null && url.startsWith("javascript:")) {
                     DWebView.super.loadUrl(url, additionalHttpHeaders);
                 } else {
-                    callInfoList = new ArrayList<>();
+                    onLoadPage();
                     DWebView.super.loadUrl(url, additionalHttpHeaders);
                 }
             }
@@ -451,12 +395,53 @@ public class DWebView extends WebView {
         runOnMainThread(new Runnable() {
             @Override
             public void run() {
-                callInfoList = new ArrayList<>();
+                onLoadPage();
                 DWebView.super.reload();
             }
         });
     }
 
+    /**
+     * Reset the bridge for the page loaded by a load API, the reset isn't repeated when the
+     * page starts, the calls made in between belong to the new page. Must be called in main thread.
+     */
+    private void onLoadPage() {
+        onNewPage();
+        pageLoadPending = true;
+    }
+
+    /**
+     * Reset the state of the bridge before a new page is loaded, must be called in main thread.
+     */
+    private void onNewPage() {
+        bridgeCore.onNewPage();
+        messageBatcher.flush();
+        setJavascriptTransport(evaluateJavascriptTransport);
+    }
+
+    /**
+     * Reset the DWebView for reuse by {@link DWebViewPool}: remove the added javascript objects,
+     * pending handlers and listeners, restore the default settings of the bridge, load {@code url}
+     * and clear the history once it is loaded. Must be called in main thread.
+     *
+     * @param url the page loaded when the DWebView is idle, about:blank if null.
+     */
+    void recycle(String url) {
+        stopLoading();
+        bridgeCore.reset("_dsb");
+        javascriptCloseWindowListener = null;
+        webChromeClient = null;
+        webViewClient = null;
+        alertBoxBlock = true;
+        setMessageBatchingEnabled(false);
+        messageBatcher.setWindow(0);
+        webMessagePortEnabled = false;
+        offlinePackageManager = null;
+        setJavascriptInjectionEnabled(false);
+        recycleUrl = url != null ? url : "about:blank";
+        loadUrl(recycleUrl);
+    }
+
     /**
      * set a listener for javascript closing the current activity.
      */
@@ -464,64 +449,279 @@ public class DWebView extends WebView {
         javascriptCloseWindowListener = listener;
     }
 
-    private static class CallInfo {
-        private String data;
-        private int callbackId;
-        private String method;
-
-        CallInfo(String handlerName, int id, Object[] args) {
-            if (args == null) args = new Object[0];
-            data = new JSONArray(Arrays.asList(args)).toString();
-            callbackId = id;
-            method = handlerName;
+    /**
+     * Deliver a message to a page whose dsbridge.js supports {@code window._handleMessagesFromNative}.
+     */
+    private void postMessageToJavascript(final String message) {
+        if (messageBatchingEnabled) {
+            messageBatcher.add(message);
+        } else {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    messageBatcher.flush();
+                    javascriptTransport.deliver("[" + message + "]");
+                }
+            });
         }
+    }
 
-        @Override
-        public String toString() {
-            JSONObject jo = new JSONObject();
-            try {
-                jo.put("method", method);
-                jo.put("callbackId", callbackId);
-                jo.put("data", data);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-            return jo.toString();
+    /**
+     * Must be called in main thread.
+     */
+    private void setJavascriptTransport(JavascriptTransport transport) {
+        if (javascriptTransport != transport) {
+            javascriptTransport.close();
+            javascriptTransport = transport;
         }
     }
 
-    private synchronized void dispatchStartupQueue() {
-        if (callInfoList != null) {
-            for (CallInfo info : callInfoList) {
-                dispatchJavascriptCall(info);
+    /**
+     * Deliver the messages to javascript through a {@link android.webkit.WebMessagePort}
+     * instead of evaluating scripts, on Android 6.0 and above. The messages are posted as data
+     * which doesn't need to be compiled by javascript engine.
+     * <p>
+     * It takes effect from the next page whose dsbridge.js supports it, otherwise
+     * {@link #evaluateJavascript(String)} is used as usual. It can be used together with
+     * {@link #setMessageBatchingEnabled(boolean)}.
+     *
+     * @param enabled
+     */
+    public void setWebMessagePortEnabled(boolean enabled) {
+        webMessagePortEnabled = enabled;
+    }
+
+    /**
+     * Set the thread in which the asynchronous APIs without a declared thread run, see
+     * {@link JavascriptThread}. By default they run in the JavaBridge thread, so a handler that
+     * does some work before going asynchronous blocks all the later calls of the page. Pass the
+     * name of an executor registered by {@link BridgeExecutor#register(String, int, int)} to
+     * enqueue such calls and return to javascript immediately.
+     * <p>
+     * The progress data of a call is still delivered in the order it is set, and a call
+     * completes only once, later results are dropped.
+     *
+     * @param thread {@link JavascriptThread#BRIDGE}, {@link JavascriptThread#MAIN} or the name of an executor.
+     */
+    public void setAsynCallThread(String thread) {
+        bridgeCore.setAsynCallThread(thread);
+    }
+
+    /**
+     * Set how the calls from javascript are decoded and the values sent to javascript are encoded.
+     * By default {@link OrgJsonCodec} gives the APIs the values of org.json. With
+     * {@link StreamingJsonCodec}, the calls are read without building a tree and an API can declare
+     * the type of its argument, such as {@code public Object add(Point point)}.
+     *
+     * @param codec null for {@link OrgJsonCodec}.
+     */
+    public void setBridgeCodec(BridgeCodec codec) {
+        bridgeCore.setBridgeCodec(codec);
+    }
+
+    /**
+     * Inject the dsbridge.js bundled in the library into every page before any script of the page
+     * runs, so pages don't need to load it and dsBridge is initialized earlier. Disabled by default.
+     * Pages which still include dsbridge.js keep working, the injected one is used.
+     * <p>
+     * Document start scripts are used if the WebView supports them, otherwise the script is
+     * evaluated when a page starts loading. Must be called in main thread.
+     *
+     * @param enabled
+     */
+    public void setJavascriptInjectionEnabled(boolean enabled) {
+        javascriptInjectionEnabled = enabled;
+        if (enabled && documentStartScript == null
+                && WebViewFeature.isFeatureSupported(WebViewFeature.DOCUMENT_START_SCRIPT)) {
+            String script = getBridgeScript(getContext());
+            if (script != null) {
+                documentStartScript = WebViewCompat.addDocumentStartJavaScript(this, script,
+                        Collections.singleton("*"));
             }
-            callInfoList = null;
+        } else if (!enabled && documentStartScript != null) {
+            documentStartScript.remove();
+            documentStartScript = null;
         }
     }
 
-    private void dispatchJavascriptCall(CallInfo info) {
-        evaluateJavascript(String.format("window._handleMessageFromNative(%s)", info.toString()));
+    /**
+     * Serve the requests matching the packages of {@code manager} from them instead of the network.
+     *
+     * @param manager null to load everything from the network.
+     */
+    public void setOfflinePackageManager(OfflinePackageManager manager) {
+        offlinePackageManager = manager;
+    }
+
+    /**
+     * Record the calls across the bridge in {@code metrics}: the number of calls and failures,
+     * the argument and result sizes, and the handler and dispatch times, per method and direction.
+     *
+     * @param metrics null to stop recording, nothing is measured then.
+     */
+    public void setBridgeMetrics(BridgeMetrics metrics) {
+        bridgeCore.setBridgeMetrics(metrics);
+    }
+
+    public BridgeMetrics getBridgeMetrics() {
+        return bridgeCore.getBridgeMetrics();
+    }
+
+    /**
+     * Trace the calls across the bridge in {@code tracer}, see {@link BridgeTracer}. Set it before
+     * loading the page, dsbridge.js starts tracing when the page is ready.
+     *
+     * @param tracer null to stop tracing, nothing is recorded then.
+     */
+    public void setBridgeTracer(BridgeTracer tracer) {
+        bridgeCore.setBridgeTracer(tracer);
+    }
+
+    public BridgeTracer getBridgeTracer() {
+        return bridgeCore.getBridgeTracer();
     }
 
-    public synchronized <T> void callHandler(String method, Object[] args, final OnReturnValue<T> handler) {
+    /**
+     * Collect the events recorded by dsbridge.js and merge them with the java events of the
+     * {@link BridgeTracer}, in the Chrome trace event format. The javascript events are passed
+     * to the callback once, later exports only contain the new ones; only the java events are
+     * exported if the page doesn't answer in a second.
+     *
+     * @param callback called in main thread with the JSON of the trace, null if there is no tracer.
+     */
+    public void exportTrace(OnReturnValue<String> callback) {
+        bridgeCore.exportTrace(callback);
+    }
 
-        CallInfo callInfo = new CallInfo(method, ++callID, args);
-        if (handler != null) {
-            handlerMap.put(callInfo.callbackId, handler);
+    private static String getBridgeScript(Context context) {
+        if (bridgeScript == null) {
+            try {
+                InputStream in = context.getAssets().open(BRIDGE_SCRIPT_ASSET);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                in.close();
+                bridgeScript = out.toString("UTF-8");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        return bridgeScript;
+    }
 
-        if (callInfoList != null) {
-            callInfoList.add(callInfo);
-        } else {
-            dispatchJavascriptCall(callInfo);
+    /**
+     * Deliver the javascript calls ({@link #callHandler(String, Object[], OnReturnValue) callHandler})
+     * and the results of asynchronous java APIs in batches instead of evaluating a script for each
+     * one of them. The messages produced within one frame (or the window set by
+     * {@link #setMessageBatchWindow(long)}) are evaluated by a single script, in order.
+     * <p>
+     * Batching only takes effect if the dsbridge.js of the page supports it,
+     * otherwise messages are delivered one by one as usual.
+     *
+     * @param enabled
+     */
+    public void setMessageBatchingEnabled(boolean enabled) {
+        messageBatchingEnabled = enabled;
+        if (!enabled) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    messageBatcher.flush();
+                }
+            });
         }
+    }
 
+    /**
+     * @param windowMillis how long messages are collected before they are delivered,
+     *                     if not positive (the default), until the next frame.
+     */
+    public void setMessageBatchWindow(long windowMillis) {
+        messageBatcher.setWindow(windowMillis);
+    }
+
+    public BatchStats getBatchStats() {
+        return messageBatcher.getStats();
+    }
+
+    public <T> void callHandler(String method, Object[] args, final OnReturnValue<T> handler) {
+        callHandler(method, args, 0, handler);
+    }
+
+    /**
+     * Call the javascript handler, if it doesn't return in {@code timeoutMillis}, the handler is
+     * removed and, if it is an {@link OnReturnValueOrTimeout}, notified.
+     *
+     * @param timeoutMillis if not positive, wait until javascript returns.
+     */
+    public <T> void callHandler(String method, Object[] args, long timeoutMillis,
+                                final OnReturnValue<T> handler) {
+        bridgeCore.callHandler(method, args, timeoutMillis, handler);
     }
 
     public void callHandler(String method, Object[] args) {
         callHandler(method, args, null);
     }
 
+    /**
+     * Bound the queue of the calls made before the page is ready, 1000 calls with
+     * {@link StartupOverflowPolicy#DROP_OLDEST} by default. The handler of a dropped call only
+     * gets {@link OnReturnValueOrTimeout#onTimeout()}, as the calls queued for a page which is
+     * left before it is ready.
+     *
+     * @param capacity the maximum number of queued calls.
+     * @param policy   what to do when the queue is full.
+     */
+    public void setStartupQueue(int capacity, StartupOverflowPolicy policy) {
+        bridgeCore.setStartupQueue(capacity, policy);
+    }
+
+    /**
+     * Bound the large arguments uploaded by dsbridge.js, 64M characters, 16 uploads and 60 seconds
+     * by default. A rejected argument is sent in the call instead.
+     *
+     * @param maxLength    the maximum length of an upload, in characters of its JSON text.
+     * @param maxUploads   the maximum number of uploads which are written or read at the same time.
+     * @param expiryMillis how long an upload which is not written any more waits for its call
+     *                     before it is deleted.
+     */
+    public void setUploadLimits(long maxLength, int maxUploads, long expiryMillis) {
+        bridgeCore.setUploadLimits(maxLength, maxUploads, expiryMillis);
+    }
+
+    /**
+     * The queued calls to javascript handlers with higher priority are dispatched first when
+     * the page is ready, the calls with the same priority keep their order. 0 by default.
+     *
+     * @param handlerName the javascript handler, including its namespace.
+     * @param priority
+     */
+    public void setStartupPriority(String handlerName, int priority) {
+        bridgeCore.setStartupPriority(handlerName, priority);
+    }
+
+    public StartupStats getStartupStats() {
+        return bridgeCore.getStartupStats();
+    }
+
+    /**
+     * @return the number of {@link #callHandler(String, Object[], OnReturnValue) callHandler}
+     * handlers waiting for javascript to return, a growing number indicates a leak.
+     */
+    public int getPendingHandlerCount() {
+        return bridgeCore.getPendingHandlerCount();
+    }
+
+    /**
+     * @return the number of handlers removed because javascript didn't return in time.
+     */
+    public long getExpiredHandlerCount() {
+        return bridgeCore.getExpiredHandlerCount();
+    }
+
     public <T> void callHandler(String method, OnReturnValue<T> handler) {
         callHandler(method, null, handler);
     }
@@ -545,31 +745,310 @@ public class DWebView extends WebView {
      * @param namespace if empty, the object have no namespace.
      */
     public void addJavascriptObject(Object object, String namespace) {
-        if (namespace == null) {
-            namespace = "";
-        }
-        if (object != null) {
-            javaScriptNamespaceInterfaces.put(namespace, object);
-        }
+        addJavascriptObject(object, namespace, null);
+    }
+
+    /**
+     * Add a java object which implemented the javascript interfaces to dsBridge with namespace,
+     * the asynchronous APIs of the object without {@link JavascriptThread} annotation run in
+     * {@code thread}.
+     *
+     * @param object
+     * @param namespace if empty, the object have no namespace.
+     * @param thread    {@link JavascriptThread#BRIDGE}, {@link JavascriptThread#MAIN} or the name of
+     *                  an executor registered by {@link BridgeExecutor#register(String, int, int)}.
+     *                  If null, the thread set by {@link #setAsynCallThread(String)} is used.
+     */
+    public void addJavascriptObject(Object object, String namespace, String thread) {
+        bridgeCore.addJavascriptObject(object, namespace, thread);
     }
 
     /**
-     * remove the javascript object with supplied namespace.
+     * remove the javascript object with supplied namespace, the object of the registry with
+     * the namespace is not visible to this DWebView either.
      *
      * @param namespace
      */
     public void removeJavascriptObject(String namespace) {
-        if (namespace == null) {
-            namespace = "";
-        }
-        javaScriptNamespaceInterfaces.remove(namespace);
+        bridgeCore.removeJavascriptObject(namespace);
+    }
 
+    /**
+     * Use the java objects of {@code registry} too, the objects added to this DWebView override
+     * the ones of the registry with the same namespace. Setting it doesn't copy the registry,
+     * the objects added to it later are visible too.
+     *
+     * @param registry null for {@link BridgeRegistry#getDefault()}, which is used by default.
+     */
+    public void setBridgeRegistry(BridgeRegistry registry) {
+        bridgeCore.setBridgeRegistry(registry);
     }
 
     public void disableJavascriptDialogBlock(boolean disable) {
         alertBoxBlock = !disable;
     }
 
+    @Override
+    public void setWebViewClient(WebViewClient client) {
+        webViewClient = client;
+    }
+
+    /**
+     * Reset the bridge when a page starts without a load API, and evaluate the bundled
+     * dsbridge.js when a page starts, on WebViews which don't support document start scripts.
+     */
+    private WebViewClient mWebViewClient = new WebViewClient() {
+
+        @Override
+        public boolean shouldOverrideUrlLoading(WebView view, String url) {
+            if (webViewClient != null) {
+                return webViewClient.shouldOverrideUrlLoading(view, url);
+            } else {
+                return super.shouldOverrideUrlLoading(view, url);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.N)
+        @Override
+        public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) {
+            if (webViewClient != null) {
+                return webViewClient.shouldOverrideUrlLoading(view, request);
+            } else {
+                return super.shouldOverrideUrlLoading(view, request);
+            }
+        }
+
+        @Override
+        public void onPageStarted(WebView view, String url, Bitmap favicon) {
+            // the pages started by links, the history, redirects or location changes are
+            // not loaded by a load API, the bridge still belongs to the previous page
+            if (pageLoadPending) {
+                pageLoadPending = false;
+            } else {
+                onNewPage();
+            }
+            if (javascriptInjectionEnabled && documentStartScript == null) {
+                String script = getBridgeScript(getContext());
+                if (script != null) {
+                    _evaluateJavascript(script);
+                }
+            }
+            if (webViewClient != null) {
+                webViewClient.onPageStarted(view, url, favicon);
+            } else {
+                super.onPageStarted(view, url, favicon);
+            }
+        }
+
+        @Override
+        public void onPageFinished(WebView view, String url) {
+            // clearHistory() only removes the pages before the current one, the previous owner's
+            // pages are only behind the recycle page once it is committed
+            if (recycleUrl != null && recycleUrl.equals(url)) {
+                recycleUrl = null;
+                clearHistory();
+            }
+            if (webViewClient != null) {
+                webViewClient.onPageFinished(view, url);
+            } else {
+                super.onPageFinished(view, url);
+            }
+        }
+
+        @Override
+        public void onLoadResource(WebView view, String url) {
+            if (webViewClient != null) {
+                webViewClient.onLoadResource(view, url);
+            } else {
+                super.onLoadResource(view, url);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.M)
+        @Override
+        public void onPageCommitVisible(WebView view, String url) {
+            if (webViewClient != null) {
+                webViewClient.onPageCommitVisible(view, url);
+            } else {
+                super.onPageCommitVisible(view, url);
+            }
+        }
+
+        @Override
+        public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+            OfflinePackageManager packages = offlinePackageManager;
+            if (packages != null) {
+                WebResourceResponse response = packages.intercept(url);
+                if (response != null) {
+                    return response;
+                }
+            }
+            if (webViewClient != null) {
+                return webViewClient.shouldInterceptRequest(view, url);
+            } else {
+                return super.shouldInterceptRequest(view, url);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+            OfflinePackageManager packages = offlinePackageManager;
+            if (packages != null && "GET".equals(request.getMethod())) {
+                WebResourceResponse response = packages.intercept(request.getUrl().toString());
+                if (response != null) {
+                    return response;
+                }
+            }
+            if (webViewClient != null) {
+                return webViewClient.shouldInterceptRequest(view, request);
+            } else {
+                return super.shouldInterceptRequest(view, request);
+            }
+        }
+
+        @Override
+        public void onTooManyRedirects(WebView view, Message cancelMsg, Message continueMsg) {
+            if (webViewClient != null) {
+                webViewClient.onTooManyRedirects(view, cancelMsg, continueMsg);
+            } else {
+                super.onTooManyRedirects(view, cancelMsg, continueMsg);
+            }
+        }
+
+        @Override
+        public void onReceivedError(WebView view, int errorCode, String description, String failingUrl) {
+            if (webViewClient != null) {
+                webViewClient.onReceivedError(view, errorCode, description, failingUrl);
+            } else {
+                super.onReceivedError(view, errorCode, description, failingUrl);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.M)
+        @Override
+        public void onReceivedError(WebView view, WebResourceRequest request, WebResourceError error) {
+            if (webViewClient != null) {
+                webViewClient.onReceivedError(view, request, error);
+            } else {
+                super.onReceivedError(view, request, error);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.M)
+        @Override
+        public void onReceivedHttpError(WebView view, WebResourceRequest request, WebResourceResponse errorResponse) {
+            if (webViewClient != null) {
+                webViewClient.onReceivedHttpError(view, request, errorResponse);
+            } else {
+                super.onReceivedHttpError(view, request, errorResponse);
+            }
+        }
+
+        @Override
+        public void onFormResubmission(WebView view, Message dontResend, Message resend) {
+            if (webViewClient != null) {
+                webViewClient.onFormResubmission(view, dontResend, resend);
+            } else {
+                super.onFormResubmission(view, dontResend, resend);
+            }
+        }
+
+        @Override
+        public void doUpdateVisitedHistory(WebView view, String url, boolean isReload) {
+            if (webViewClient != null) {
+                webViewClient.doUpdateVisitedHistory(view, url, isReload);
+            } else {
+                super.doUpdateVisitedHistory(view, url, isReload);
+            }
+        }
+
+        @Override
+        public void onReceivedSslError(WebView view, SslErrorHandler handler, SslError error) {
+            if (webViewClient != null) {
+                webViewClient.onReceivedSslError(view, handler, error);
+            } else {
+                super.onReceivedSslError(view, handler, error);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        public void onReceivedClientCertRequest(WebView view, ClientCertRequest request) {
+            if (webViewClient != null) {
+                webViewClient.onReceivedClientCertRequest(view, request);
+            } else {
+                super.onReceivedClientCertRequest(view, request);
+            }
+        }
+
+        @Override
+        public void onReceivedHttpAuthRequest(WebView view, HttpAuthHandler handler, String host, String realm) {
+            if (webViewClient != null) {
+                webViewClient.onReceivedHttpAuthRequest(view, handler, host, realm);
+            } else {
+                super.onReceivedHttpAuthRequest(view, handler, host, realm);
+            }
+        }
+
+        @Override
+        public boolean shouldOverrideKeyEvent(WebView view, KeyEvent event) {
+            if (webViewClient != null) {
+                return webViewClient.shouldOverrideKeyEvent(view, event);
+            } else {
+                return super.shouldOverrideKeyEvent(view, event);
+            }
+        }
+
+        @Override
+        public void onUnhandledKeyEvent(WebView view, KeyEvent event) {
+            if (webViewClient != null) {
+                webViewClient.onUnhandledKeyEvent(view, event);
+            } else {
+                super.onUnhandledKeyEvent(view, event);
+            }
+        }
+
+        @Override
+        public void onScaleChanged(WebView view, float oldScale, float newScale) {
+            if (webViewClient != null) {
+                webViewClient.onScaleChanged(view, oldScale, newScale);
+            } else {
+                super.onScaleChanged(view, oldScale, newScale);
+            }
+        }
+
+        @Override
+        public void onReceivedLoginRequest(WebView view, String realm, String account, String args) {
+            if (webViewClient != null) {
+                webViewClient.onReceivedLoginRequest(view, realm, account, args);
+            } else {
+                super.onReceivedLoginRequest(view, realm, account, args);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.O)
+        @Override
+        public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+            if (webViewClient != null) {
+                return webViewClient.onRenderProcessGone(view, detail);
+            } else {
+                return super.onRenderProcessGone(view, detail);
+            }
+        }
+
+        @TargetApi(Build.VERSION_CODES.O_MR1)
+        @Override
+        public void onSafeBrowsingHit(WebView view, WebResourceRequest request, int threatType,
+                                      SafeBrowsingResponse callback) {
+            if (webViewClient != null) {
+                webViewClient.onSafeBrowsingHit(view, request, threatType, callback);
+            } else {
+                super.onSafeBrowsingHit(view, request, threatType, callback);
+            }
+        }
+    };
+
     @Override
     public void setWebChromeClient(WebChromeClient client) {
         webChromeClient = client;
@@ -0,0 +1,165 @@
+package wendu.dsbridge.special;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.content.res.Configuration;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of {@link DWebView}s created ahead of time when the main thread is idle, so a page
+ * doesn't need to wait for the WebView to be created and initialized.
+ * <p>
+ * The DWebViews are created with a {@link MutableContextWrapper}, {@link #acquire(Context)} switches
+ * it to the given context, {@link #release(DWebView)} resets the DWebView and puts it back. Idle
+ * DWebViews are destroyed when memory is low. The pool must be used in main thread.
+ */
+public class DWebViewPool implements ComponentCallbacks2 {
+
+    private final Context appContext;
+    private final int maxSize;
+    private final ArrayDeque<DWebView> idle = new ArrayDeque<>();
+    private String shellUrl;
+    private boolean prewarming = false;
+    private boolean trimmed = false;
+
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    private final MessageQueue.IdleHandler prewarmHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            // create one DWebView per idle pass, not to block the main thread for long
+            if (!trimmed && idle.size() < maxSize) {
+                idle.addLast(create(appContext));
+            }
+            prewarming = !trimmed && idle.size() < maxSize;
+            return prewarming;
+        }
+    };
+
+    /**
+     * @param maxSize the maximum number of idle DWebViews.
+     */
+    public DWebViewPool(Context context, int maxSize) {
+        appContext = context.getApplicationContext();
+        this.maxSize = maxSize;
+        appContext.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Set the page loaded by idle DWebViews, such as a blank shell page which includes dsbridge.js,
+     * so the page of {@link #acquire(Context)} can reuse its cache. about:blank by default.
+     */
+    public void setShellUrl(String url) {
+        shellUrl = url;
+    }
+
+    /**
+     * Fill the pool when the main thread is idle.
+     */
+    public void prewarm() {
+        trimmed = false;
+        if (!prewarming && idle.size() < maxSize) {
+            prewarming = true;
+            Looper.myQueue().addIdleHandler(prewarmHandler);
+        }
+    }
+
+    /**
+     * @return an idle DWebView, or a new one if the pool is empty.
+     */
+    public DWebView acquire(Context context) {
+        DWebView webView = idle.pollFirst();
+        if (webView != null) {
+            hitCount++;
+            ((MutableContextWrapper) webView.getContext()).setBaseContext(context);
+        } else {
+            missCount++;
+            webView = create(context);
+        }
+        prewarm();
+        return webView;
+    }
+
+    /**
+     * Reset the DWebView and put it back to the pool, or destroy it if the pool is full.
+     * The DWebView is removed from its parent.
+     */
+    public void release(DWebView webView) {
+        ViewParent parent = webView.getParent();
+        if (parent instanceof ViewGroup) {
+            ((ViewGroup) parent).removeView(webView);
+        }
+        if (idle.size() >= maxSize || !(webView.getContext() instanceof MutableContextWrapper)) {
+            webView.destroy();
+            return;
+        }
+        // don't keep the activity
+        ((MutableContextWrapper) webView.getContext()).setBaseContext(appContext);
+        webView.recycle(shellUrl);
+        idle.addLast(webView);
+    }
+
+    /**
+     * Destroy the idle DWebViews until at most {@code size} are left.
+     */
+    public void trimTo(int size) {
+        trimmed = true;
+        while (idle.size() > Math.max(0, size)) {
+            idle.pollLast().destroy();
+        }
+    }
+
+    /**
+     * @return how many times {@link #acquire(Context)} got an idle DWebView.
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return how many times {@link #acquire(Context)} had to create a DWebView.
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Create a DWebView, override it to create a subclass or to set up the WebView. The settings
+     * of the bridge, such as the codec or the metrics, are reset when it is released, set them
+     * after {@link #acquire(Context)}.
+     */
+    protected DWebView create(Context context) {
+        DWebView webView = new DWebView(new MutableContextWrapper(context));
+        webView.loadUrl(shellUrl != null ? shellUrl : "about:blank");
+        return webView;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTo(0);
+        } else if (level == TRIM_MEMORY_RUNNING_LOW) {
+            trimTo(idle.size() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        trimTo(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
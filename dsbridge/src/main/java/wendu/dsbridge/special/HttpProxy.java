@@ -0,0 +1,347 @@
+package wendu.dsbridge.special;
+
+import android.util.Base64;
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Performs the http requests of javascript in native, such as the ajax requests forwarded by
+ * <a href="https://github.com/wendux/fly">fly.js</a>, so they are not restricted by the same-origin
+ * policy. All the requests share the connection pool of {@link HttpURLConnection}, and the
+ * concurrent requests to a host are limited.
+ * <p>
+ * Only the http and https urls of the allowed hosts are requested, redirects included, the other
+ * requests fail. The responses are cached by the {@link java.net.ResponseCache} the app installs,
+ * such as {@code android.net.http.HttpResponseCache}, override {@link #openConnection(URL)} to
+ * set up the connections differently.
+ * <p>
+ * Add it to DWebViews with {@code addJavascriptObject(httpProxy, null)}, one instance can be
+ * shared by all of them. The request is the one of fly.js:
+ * {@code {url, method, headers, data, timeout, responseType}}, and the response is
+ * {@code {statusCode, statusMessage, headers, responseText}} as a JSON string, the body is
+ * base64 encoded if {@code responseType} is {@code "stream"}.
+ * <p>
+ * If the request has {@code chunked: true}, the response is delivered in progress callbacks:
+ * {@code {statusCode, statusMessage, headers}} first, then {@code {responseText}} for every chunk
+ * of the body, and the call completes with {@code {done: true}}.
+ */
+public class HttpProxy {
+
+    // a multiple of 3, so the base64 chunks can be concatenated
+    private static final int CHUNK_SIZE = 3 * 16 * 1024;
+    private static final int MAX_REDIRECTS = 5;
+
+    private static final class HostQueue {
+        int running = 0;
+        final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Set<String> allowedHosts = new HashSet<>();
+    private final int maxRequestsPerHost;
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+
+    /**
+     * @param allowedHosts the hosts javascript can request, such as "api.example.com".
+     */
+    public HttpProxy(Collection<String> allowedHosts) {
+        this(allowedHosts, 6);
+    }
+
+    /**
+     * @param allowedHosts       the hosts javascript can request, such as "api.example.com".
+     * @param maxRequestsPerHost the max number of concurrent requests to a host, the others wait.
+     */
+    public HttpProxy(Collection<String> allowedHosts, int maxRequestsPerHost) {
+        for (String host : allowedHosts) {
+            this.allowedHosts.add(host.toLowerCase(Locale.US));
+        }
+        this.maxRequestsPerHost = Math.max(1, maxRequestsPerHost);
+        executor = new ThreadPoolExecutor(16, 16, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "dsBridge-http-" + count.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The API called by the dsBridge adapter of fly.js.
+     */
+    @JavascriptInterface
+    public void onAjaxRequest(Object requestData, final CompletionHandler<String> handler) {
+        final JSONObject request = requestData instanceof JSONObject ? (JSONObject) requestData : new JSONObject();
+        URL url;
+        try {
+            url = new URL(request.optString("url"));
+        } catch (IOException e) {
+            handler.complete(error(e));
+            return;
+        }
+        if (!isAllowed(url)) {
+            handler.complete(error("The url is not allowed: " + url));
+            return;
+        }
+        submit(url.getHost(), new Runnable() {
+            @Override
+            public void run() {
+                perform(request, handler);
+            }
+        });
+    }
+
+    /**
+     * Open the connection of a request or of its redirect, {@link HttpURLConnection} by default.
+     */
+    protected HttpURLConnection openConnection(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    /**
+     * Encode the body of a {@code "stream"} response, with {@link Base64} by default.
+     */
+    protected String encodeBase64(byte[] data, int offset, int length) {
+        return Base64.encodeToString(data, offset, length, Base64.NO_WRAP);
+    }
+
+    private boolean isAllowed(URL url) {
+        String protocol = url.getProtocol();
+        return ("http".equals(protocol) || "https".equals(protocol))
+                && allowedHosts.contains(url.getHost().toLowerCase(Locale.US));
+    }
+
+    private void submit(final String host, final Runnable request) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    request.run();
+                } finally {
+                    Runnable next;
+                    synchronized (hosts) {
+                        HostQueue queue = hosts.get(host);
+                        next = queue.waiting.poll();
+                        if (next == null && --queue.running == 0) {
+                            hosts.remove(host);
+                        }
+                    }
+                    if (next != null) {
+                        executor.execute(next);
+                    }
+                }
+            }
+        };
+        synchronized (hosts) {
+            HostQueue queue = hosts.get(host);
+            if (queue == null) {
+                queue = new HostQueue();
+                hosts.put(host, queue);
+            }
+            if (queue.running >= maxRequestsPerHost) {
+                queue.waiting.add(task);
+                return;
+            }
+            queue.running++;
+        }
+        executor.execute(task);
+    }
+
+    private void perform(JSONObject request, CompletionHandler<String> handler) {
+        HttpURLConnection connection = null;
+        try {
+            URL url = new URL(request.getString("url"));
+            String method = request.optString("method", "GET").toUpperCase(Locale.US);
+            String data = request.optString("data", null);
+            // the redirects are followed here, so the hosts they lead to are checked
+            for (int redirects = 0; ; redirects++) {
+                connection = connect(url, method, request.optJSONObject("headers"), data,
+                        request.optInt("timeout", 0));
+                int code = connection.getResponseCode();
+                String location = connection.getHeaderField("Location");
+                if (location == null || (code != 301 && code != 302 && code != 303 && code != 307 && code != 308)) {
+                    break;
+                }
+                if (redirects == MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects");
+                }
+                url = new URL(url, location);
+                if (!isAllowed(url)) {
+                    throw new IOException("The redirect is not allowed: " + url);
+                }
+                if (code == 303 || ((code == 301 || code == 302) && "POST".equals(method))) {
+                    method = "GET";
+                    data = null;
+                }
+                connection.disconnect();
+                connection = null;
+            }
+
+            JSONObject response = new JSONObject();
+            response.put("statusCode", connection.getResponseCode());
+            response.put("statusMessage", connection.getResponseMessage());
+            JSONObject responseHeaders = new JSONObject();
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                if (header.getKey() != null) {
+                    responseHeaders.put(header.getKey(), new JSONArray(header.getValue()));
+                }
+            }
+            response.put("headers", responseHeaders);
+
+            InputStream in = connection.getResponseCode() >= 400 ? connection.getErrorStream()
+                    : connection.getInputStream();
+            boolean binary = "stream".equals(request.optString("responseType"));
+            if (request.optBoolean("chunked")) {
+                handler.setProgressData(response.toString());
+                if (in != null) {
+                    readChunks(in, binary, charsetOf(connection.getContentType()), handler);
+                }
+                JSONObject done = new JSONObject();
+                done.put("done", true);
+                handler.complete(done.toString());
+                return;
+            }
+            byte[] body = in == null ? new byte[0] : readFully(in);
+            response.put("responseText", binary ? encodeBase64(body, 0, body.length)
+                    : new String(body, charsetOf(connection.getContentType())));
+            handler.complete(response.toString());
+        } catch (Exception e) {
+            handler.complete(error(e));
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private HttpURLConnection connect(URL url, String method, JSONObject headers, String data, int timeout)
+            throws Exception {
+        HttpURLConnection connection = openConnection(url);
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        if (headers != null) {
+            Iterator<String> keys = headers.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                // Here you can use a CookieHandler to manage cookies in a unified way with your native code.
+                if (!"cookie".equalsIgnoreCase(key)) {
+                    connection.setRequestProperty(key, headers.getString(key));
+                }
+            }
+        }
+        if (data != null && !"GET".equals(method) && !"HEAD".equals(method)) {
+            connection.setDoOutput(true);
+            OutputStream out = connection.getOutputStream();
+            out.write(data.getBytes("UTF-8"));
+            out.close();
+        }
+        return connection;
+    }
+
+    private void readChunks(InputStream in, boolean binary, String charset,
+                                   CompletionHandler<String> handler) throws Exception {
+        try {
+            if (binary) {
+                byte[] buffer = new byte[CHUNK_SIZE];
+                int n;
+                while ((n = readBlock(in, buffer)) > 0) {
+                    handler.setProgressData(chunk(encodeBase64(buffer, 0, n)));
+                }
+            } else {
+                Reader reader = new InputStreamReader(in, charset);
+                char[] buffer = new char[CHUNK_SIZE / 3];
+                int n;
+                while ((n = reader.read(buffer)) != -1) {
+                    handler.setProgressData(chunk(new String(buffer, 0, n)));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Fill the buffer unless the stream ends, so only the last base64 chunk is padded.
+     */
+    private static int readBlock(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int n;
+        while (total < buffer.length && (n = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += n;
+        }
+        return total;
+    }
+
+    private static String chunk(String text) throws Exception {
+        JSONObject chunk = new JSONObject();
+        chunk.put("responseText", text);
+        return chunk.toString();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String charsetOf(String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                    return param.substring(8).replace("\"", "");
+                }
+            }
+        }
+        return "UTF-8";
+    }
+
+    private static String error(Exception e) {
+        return error(e.getMessage());
+    }
+
+    private static String error(String message) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("statusCode", 0);
+        response.put("responseText", message);
+        return new JSONObject(response).toString();
+    }
+}
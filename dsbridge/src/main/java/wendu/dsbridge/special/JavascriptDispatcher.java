@@ -0,0 +1,40 @@
+package wendu.dsbridge.special;
+
+/**
+ * Calls the javascript interfaces of an API object directly instead of using reflection.
+ * <p>
+ * Implementations are generated by the dsbridge-compiler annotation processor for every
+ * class that declares methods with {@link android.webkit.JavascriptInterface} annotation,
+ * and are named after the API class with a {@code _JsDispatcher} suffix.
+ * {@link DWebView#addJavascriptObject(Object, String)} uses the generated dispatcher if
+ * there is one, otherwise it falls back to reflection.
+ */
+public interface JavascriptDispatcher {
+
+    String SUFFIX = "_JsDispatcher";
+
+    /**
+     * @return the names of the synchronous APIs: {@code public any handler(T msg)}
+     */
+    String[] synMethods();
+
+    /**
+     * @return the names of the asynchronous APIs: {@code public void handler(T arg, CompletionHandler handler)}
+     */
+    String[] asynMethods();
+
+    /**
+     * @return the value of the {@link JavascriptThread} annotation of the API or of its class,
+     * null if neither of them is annotated.
+     */
+    String threadOf(String methodName);
+
+    /**
+     * Call the API named {@code methodName} of {@code target}.
+     *
+     * @param arg     the argument bound to the type of the parameter by the {@link BridgeCodec}.
+     * @param handler null for synchronous APIs.
+     * @return the return value of a synchronous API, null for asynchronous APIs.
+     */
+    Object call(Object target, String methodName, Object arg, CompletionHandler handler) throws Exception;
+}
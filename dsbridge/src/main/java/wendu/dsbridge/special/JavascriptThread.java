@@ -0,0 +1,40 @@
+package wendu.dsbridge.special;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the thread in which asynchronous java APIs
+ * ({@code public void handler(Object arg, CompletionHandler handler)}) run.
+ * <p>
+ * By default javascript calls are handled in the JavaBridge thread of the WebView, which
+ * handles the calls of a page one by one, so a slow API blocks all the later calls. Run
+ * such APIs in the main thread, or in an executor registered by
+ * {@link BridgeExecutor#register(String, int, int)}, then the JavaBridge thread returns to
+ * javascript immediately. Synchronous APIs always run in the JavaBridge thread, since
+ * their return values are returned to javascript directly.
+ * <p>
+ * The annotation of a method takes precedence over the annotation of its class, which takes
+ * precedence over the thread passed to {@link DWebView#addJavascriptObject(Object, String, String)},
+ * then {@link DWebView#setAsynCallThread(String)}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface JavascriptThread {
+    /**
+     * The JavaBridge thread of the WebView.
+     */
+    String BRIDGE = "bridge";
+
+    /**
+     * The main thread.
+     */
+    String MAIN = "main";
+
+    /**
+     * {@link #BRIDGE}, {@link #MAIN} or the name of a {@link BridgeExecutor}.
+     */
+    String value();
+}
@@ -0,0 +1,19 @@
+package wendu.dsbridge.special;
+
+/**
+ * Delivers the messages that native sends to javascript.
+ * <p>
+ * Messages are javascript object literals which are handled by
+ * {@code window._handleMessagesFromNative} of dsbridge.js.
+ */
+interface JavascriptTransport {
+
+    /**
+     * Must be called in main thread.
+     *
+     * @param messages a JSON array of messages.
+     */
+    void deliver(String messages);
+
+    void close();
+}
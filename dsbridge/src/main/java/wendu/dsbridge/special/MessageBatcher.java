@@ -0,0 +1,122 @@
+package wendu.dsbridge.special;
+
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the messages that native sends to javascript and delivers them
+ * all at once, once per frame or per configurable window.
+ * <p>
+ * {@link #add(String)} can be called in any thread, the batch is always
+ * evaluated in the main thread in the order the messages were added.
+ */
+final class MessageBatcher {
+
+    interface Sink {
+        /**
+         * @param messages a JSON array of messages
+         */
+        void deliver(String messages);
+    }
+
+    private final Object lock = new Object();
+    private final Handler mainHandler;
+    private final Sink sink;
+    private ArrayList<String> pending = new ArrayList<>();
+    private boolean scheduled = false;
+    private volatile long windowMillis = 0;
+
+    private long batchCount = 0;
+    private long messageCount = 0;
+    private int maxBatchSize = 0;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flush();
+        }
+    };
+
+    private final Runnable scheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long window = windowMillis;
+            if (window > 0) {
+                mainHandler.postDelayed(flushRunnable, window);
+            } else {
+                Choreographer.getInstance().postFrameCallback(frameCallback);
+            }
+        }
+    };
+
+    MessageBatcher(Handler mainHandler, Sink sink) {
+        this.mainHandler = mainHandler;
+        this.sink = sink;
+    }
+
+    /**
+     * @param windowMillis if not positive, messages are collected until the next frame.
+     */
+    void setWindow(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @param message a javascript object literal which will be handled by
+     *                {@code window._handleMessagesFromNative}
+     */
+    void add(String message) {
+        boolean schedule;
+        synchronized (lock) {
+            pending.add(message);
+            schedule = !scheduled;
+            scheduled = true;
+        }
+        if (schedule) {
+            mainHandler.post(scheduleRunnable);
+        }
+    }
+
+    /**
+     * Evaluate the pending messages right now, must be called in main thread.
+     */
+    void flush() {
+        ArrayList<String> messages;
+        synchronized (lock) {
+            scheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            messages = pending;
+            pending = new ArrayList<>();
+            batchCount++;
+            messageCount += messages.size();
+            maxBatchSize = Math.max(maxBatchSize, messages.size());
+        }
+        mainHandler.removeCallbacks(flushRunnable);
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                batch.append(',');
+            }
+            batch.append(messages.get(i));
+        }
+        batch.append(']');
+        sink.deliver(batch.toString());
+    }
+
+    BatchStats getStats() {
+        synchronized (lock) {
+            return new BatchStats(batchCount, messageCount, maxBatchSize, pending.size());
+        }
+    }
+}
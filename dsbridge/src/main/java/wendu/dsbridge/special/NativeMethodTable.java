@@ -0,0 +1,274 @@
+package wendu.dsbridge.special;
+
+import android.os.Build;
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The resolved javascript interfaces of a java object added by
+ * {@link DWebView#addJavascriptObject(Object, String)}.
+ * <p>
+ * The object is scanned only once when it is added, so a call from javascript
+ * only needs a map lookup instead of reflection. If dsbridge-compiler generated a
+ * {@link JavascriptDispatcher} for the class of the object, the methods are called
+ * through it, otherwise through {@link Method#invoke(Object, Object...)}.
+ * <p>
+ * The methods of a class are resolved once in the process, the objects of the same class
+ * share the immutable entries.
+ * <p>
+ * The parameter of an API is {@code Object} or another class, to which the {@link BridgeCodec}
+ * binds the argument.
+ */
+final class NativeMethodTable {
+
+    static final class Entry {
+        final String name;
+        final boolean asyn;
+        /**
+         * false if the method is not declared with {@link JavascriptInterface} annotation,
+         * such a method is kept only to report a meaningful error.
+         */
+        final boolean exposed;
+        /**
+         * The thread the API runs in, see {@link JavascriptThread}. null if it is not declared,
+         * then the API runs in the thread of {@link #threadOf(Entry)}.
+         */
+        final String thread;
+        /**
+         * The type of the parameter, see {@link BridgeCodec.Call#data(Type)}.
+         */
+        final Type argType;
+        private final Method method;
+        private final JavascriptDispatcher dispatcher;
+
+        Entry(String name, boolean asyn, boolean exposed, String thread, Type argType, Method method,
+              JavascriptDispatcher dispatcher) {
+            this.name = name;
+            this.asyn = asyn;
+            this.exposed = exposed;
+            this.thread = asyn ? thread : JavascriptThread.BRIDGE;
+            this.argType = argType;
+            this.method = method;
+            this.dispatcher = dispatcher;
+        }
+
+        Object invoke(Object target, Object arg, CompletionHandler handler) throws Exception {
+            if (dispatcher != null) {
+                return dispatcher.call(target, name, arg, handler);
+            }
+            return asyn ? method.invoke(target, arg, handler) : method.invoke(target, arg);
+        }
+    }
+
+    static final int KIND_SYN = 1;
+    static final int KIND_ASYN = 2;
+
+    private static final ConcurrentHashMap<Class<?>, Map<String, Entry>> resolved = new ConcurrentHashMap<>();
+
+    final Object target;
+    private final String defaultThread;
+    private final Map<String, Entry> entries;
+
+    private NativeMethodTable(Object target, String defaultThread, Map<String, Entry> entries) {
+        this.target = target;
+        this.defaultThread = defaultThread;
+        this.entries = entries;
+    }
+
+    /**
+     * @param defaultThread the thread of the asynchronous APIs without {@link JavascriptThread} annotation,
+     *                      may be null.
+     */
+    static NativeMethodTable build(Object target, String defaultThread) {
+        Class<?> cls = target.getClass();
+        Map<String, Entry> entries = resolved.get(cls);
+        if (entries == null) {
+            JavascriptDispatcher dispatcher = findDispatcher(cls);
+            entries = Collections.unmodifiableMap(dispatcher != null ? fromDispatcher(dispatcher, cls)
+                    : fromReflection(cls));
+            Map<String, Entry> old = resolved.putIfAbsent(cls, entries);
+            if (old != null) {
+                entries = old;
+            }
+        }
+        return new NativeMethodTable(target, defaultThread, entries);
+    }
+
+    Entry get(String methodName) {
+        return entries.get(methodName);
+    }
+
+    /**
+     * @return the exposed methods and their kind, {@link #KIND_SYN} or {@link #KIND_ASYN}, for the
+     * manifest of dsbridge.js.
+     */
+    JSONObject manifest() {
+        JSONObject methods = new JSONObject();
+        try {
+            for (Entry entry : entries.values()) {
+                if (entry.exposed) {
+                    methods.put(entry.name, entry.asyn ? KIND_ASYN : KIND_SYN);
+                }
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return methods;
+    }
+
+    /**
+     * @return the thread of an asynchronous API, null if neither the API nor the object declares
+     * one, then it runs in the thread set by {@link DWebView#setAsynCallThread(String)}.
+     */
+    String threadOf(Entry entry) {
+        return entry.thread != null ? entry.thread : defaultThread;
+    }
+
+    private static JavascriptDispatcher findDispatcher(Class<?> cls) {
+        try {
+            Class<?> dispatcherClass = Class.forName(cls.getName() + JavascriptDispatcher.SUFFIX,
+                    true, cls.getClassLoader());
+            return (JavascriptDispatcher) dispatcherClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static Map<String, Entry> fromDispatcher(JavascriptDispatcher dispatcher, Class<?> cls) {
+        Map<String, Entry> entries = new HashMap<>();
+        for (String name : dispatcher.synMethods()) {
+            entries.put(name, new Entry(name, false, true, null, findArgType(cls, name, 1), null, dispatcher));
+        }
+        // asynchronous implementation wins if both of them exist
+        for (String name : dispatcher.asynMethods()) {
+            String thread = dispatcher.threadOf(name);
+            entries.put(name, new Entry(name, true, true, thread, findArgType(cls, name, 2), null, dispatcher));
+        }
+        return entries;
+    }
+
+    /**
+     * @return the type of the parameter of the API dispatched by a {@link JavascriptDispatcher}.
+     */
+    private static Type findArgType(Class<?> cls, String name, int parameterCount) {
+        Method found = null;
+        for (Method method : cls.getMethods()) {
+            if (!method.getName().equals(name) || method.getParameterTypes().length != parameterCount
+                    || argTypeOf(method) == null) {
+                continue;
+            }
+            // an overload which is not an API, the annotation is looked up by name so that the
+            // dispatched objects don't need the Android classes
+            if (found == null || isJavascriptInterface(method)) {
+                found = method;
+            }
+        }
+        return found != null ? argTypeOf(found) : Object.class;
+    }
+
+    private static boolean isJavascriptInterface(Method method) {
+        for (Annotation annotation : method.getAnnotations()) {
+            if (annotation.annotationType().getName().equals("android.webkit.JavascriptInterface")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the type of the parameter of an API: {@code any handler(T msg)} or
+     * {@code void handler(T arg, CompletionHandler handler)}, null if it is not an API.
+     * A type with type variables is erased, so {@code T} of a generic class is {@code Object}
+     * as in the old versions.
+     */
+    private static Type argTypeOf(Method method) {
+        Class<?>[] types = method.getParameterTypes();
+        if (types.length == 0 || types.length > 2 || types[0].isPrimitive()
+                || (types.length == 2 && types[1] != CompletionHandler.class)) {
+            return null;
+        }
+        Type type = method.getGenericParameterTypes()[0];
+        return hasTypeVariable(type) ? types[0] : type;
+    }
+
+    private static boolean hasTypeVariable(Type type) {
+        if (type instanceof TypeVariable) {
+            return true;
+        }
+        if (type instanceof ParameterizedType) {
+            for (Type argument : ((ParameterizedType) type).getActualTypeArguments()) {
+                if (hasTypeVariable(argument)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (type instanceof GenericArrayType) {
+            return hasTypeVariable(((GenericArrayType) type).getGenericComponentType());
+        }
+        if (type instanceof WildcardType) {
+            WildcardType wildcard = (WildcardType) type;
+            for (Type bound : wildcard.getUpperBounds()) {
+                if (hasTypeVariable(bound)) {
+                    return true;
+                }
+            }
+            for (Type bound : wildcard.getLowerBounds()) {
+                if (hasTypeVariable(bound)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, Entry> fromReflection(Class<?> cls) {
+        JavascriptThread classThread = cls.getAnnotation(JavascriptThread.class);
+        String defaultThread = classThread != null ? classThread.value() : null;
+        boolean checkAnnotation = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
+        Map<String, Entry> entries = new HashMap<>();
+        for (Method method : cls.getMethods()) {
+            Type argType = argTypeOf(method);
+            // where the annotation is not checked, only the methods with an Object parameter are APIs
+            if (argType == null || (!checkAnnotation && argType != Object.class)) {
+                continue;
+            }
+            boolean asyn = method.getParameterTypes().length == 2;
+            boolean exposed = !checkAnnotation || method.getAnnotation(JavascriptInterface.class) != null;
+            // the methods which are not APIs are kept to report an error, as the Object ones were
+            if (!exposed && argType != Object.class) {
+                continue;
+            }
+            Entry old = entries.get(method.getName());
+            // an API always wins over an overload which is not one, whatever the order of
+            // getMethods(), then the asynchronous implementation wins if both of them exist
+            if (old != null && (old.exposed != exposed ? old.exposed : old.asyn)) {
+                continue;
+            }
+            if (exposed) {
+                method.setAccessible(true);
+            }
+            JavascriptThread thread = method.getAnnotation(JavascriptThread.class);
+            entries.put(method.getName(), new Entry(method.getName(), asyn, exposed,
+                    thread != null ? thread.value() : defaultThread, argType, method, null));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,209 @@
+package wendu.dsbridge.special;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A zip file mapped into memory, indexed by its central directory. Entries are read straight
+ * from the mapping, stored entries are not copied and deflated entries are inflated while
+ * they are read, nothing is extracted. Zip64 archives are not supported.
+ */
+final class OfflineArchive {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final class Entry {
+        final int method;
+        final int compressedSize;
+        final int size;
+        final int headerOffset;
+
+        Entry(int method, int compressedSize, int size, int headerOffset) {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final Map<String, Entry> entries;
+
+    private OfflineArchive(File file, ByteBuffer buffer, Map<String, Entry> entries) {
+        this.file = file;
+        this.buffer = buffer;
+        this.entries = entries;
+    }
+
+    static OfflineArchive open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer buffer;
+        try {
+            if (raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("Archive is too large: " + file);
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return new OfflineArchive(file, buffer, Collections.unmodifiableMap(readCentralDirectory(file, buffer)));
+    }
+
+    private static Map<String, Entry> readCentralDirectory(File file, ByteBuffer buffer) throws IOException {
+        int eocd = -1;
+        // the end of central directory record is followed by a comment of at most 64KB
+        for (int i = buffer.limit() - EOCD_SIZE; i >= Math.max(0, buffer.limit() - EOCD_SIZE - 0xffff); i--) {
+            if (buffer.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a zip file: " + file);
+        }
+        int count = buffer.getShort(eocd + 10) & 0xffff;
+        long offset = buffer.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || offset == 0xffffffffL) {
+            throw new IOException("Zip64 is not supported: " + file);
+        }
+        Map<String, Entry> entries = new HashMap<>(count * 2);
+        int pos = (int) offset;
+        for (int i = 0; i < count; i++) {
+            if (pos + 46 > buffer.limit() || buffer.getInt(pos) != CENTRAL_SIGNATURE) {
+                throw new IOException("Corrupted central directory: " + file);
+            }
+            int method = buffer.getShort(pos + 10) & 0xffff;
+            int compressedSize = buffer.getInt(pos + 20);
+            int size = buffer.getInt(pos + 24);
+            int nameLength = buffer.getShort(pos + 28) & 0xffff;
+            int extraLength = buffer.getShort(pos + 30) & 0xffff;
+            int commentLength = buffer.getShort(pos + 32) & 0xffff;
+            int headerOffset = buffer.getInt(pos + 42);
+            if (compressedSize < 0 || size < 0 || headerOffset < 0) {
+                throw new IOException("Zip64 is not supported: " + file);
+            }
+            byte[] name = new byte[nameLength];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(pos + 46);
+            slice.get(name);
+            String entryName = new String(name, UTF_8);
+            if (!entryName.endsWith("/")) {
+                entries.put(entryName, new Entry(method, compressedSize, size, headerOffset));
+            }
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * @return the uncompressed size of the entry, -1 if there is no such entry.
+     */
+    int size(String name) {
+        Entry entry = entries.get(name);
+        return entry == null ? -1 : entry.size;
+    }
+
+    /**
+     * @return the content of the entry, null if there is no such entry.
+     */
+    InputStream open(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+        int header = entry.headerOffset;
+        if (header + 30 > buffer.limit() || buffer.getInt(header) != LOCAL_SIGNATURE) {
+            throw new IOException("Corrupted entry " + name + " in " + file);
+        }
+        // the extra field of the local header may differ from the central directory
+        int data = header + 30 + (buffer.getShort(header + 26) & 0xffff) + (buffer.getShort(header + 28) & 0xffff);
+        ByteBuffer content = buffer.duplicate();
+        content.position(data);
+        content.limit(data + entry.compressedSize);
+        InputStream in = new ByteBufferInputStream(content.slice());
+        switch (entry.method) {
+            case STORED:
+                return in;
+            case DEFLATED:
+                // raw inflating needs an extra dummy byte to detect the end of the data
+                in = new SequenceInputStream(in, new ByteArrayInputStream(new byte[1]));
+                return new InflaterInputStream(in, new Inflater(true), 8192) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default:
+                throw new IOException("Unsupported compression method " + entry.method + " of " + name);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+    }
+}
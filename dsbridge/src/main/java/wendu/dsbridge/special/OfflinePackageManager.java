@@ -0,0 +1,254 @@
+package wendu.dsbridge.special;
+
+import android.webkit.WebResourceResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves pages from versioned zip packages instead of the network, see
+ * {@link DWebView#setOfflinePackageManager(OfflinePackageManager)}.
+ * <p>
+ * A package is registered for a url prefix, such as {@code https://m.example.com/app/}, and a
+ * request whose url starts with the prefix, at a path boundary, is served from the entry of the package at the rest of
+ * the path ({@code index.html} for directories). Packages are memory-mapped and read in place,
+ * never extracted. Registering a new version of a package switches to it atomically, the requests
+ * being served keep reading the old one. Can be used in any thread and shared by DWebViews.
+ */
+public final class OfflinePackageManager {
+
+    /**
+     * A response of {@link #intercept(String)}, before it is wrapped in a WebResourceResponse.
+     */
+    static final class Resource {
+        final String mimeType;
+        /**
+         * null for the binary types.
+         */
+        final String encoding;
+        final InputStream data;
+
+        Resource(String mimeType, String encoding, InputStream data) {
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.data = data;
+        }
+    }
+
+    private static final class Package {
+        final String version;
+        final File file;
+
+        Package(String version, File file) {
+            this.version = version;
+            this.file = file;
+        }
+    }
+
+    private final Map<String, Package> packages = new ConcurrentHashMap<>();
+    private final LinkedHashMap<File, OfflineArchive> archives = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxOpenArchives;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    /**
+     * @param maxOpenArchives how many packages are kept mapped, the least recently used ones
+     *                        are mapped again when they are requested.
+     */
+    public OfflinePackageManager(int maxOpenArchives) {
+        this.maxOpenArchives = Math.max(1, maxOpenArchives);
+    }
+
+    /**
+     * Serve the requests starting with {@code urlPrefix} from the zip file {@code zip}, replacing
+     * the package registered for the prefix before. The file must not be modified while it is
+     * registered, register a new file for a new version.
+     *
+     * @throws IOException if the file is not a valid zip file, the current package is kept.
+     */
+    public void register(String urlPrefix, String version, File zip) throws IOException {
+        // index it before switching, so a broken package never replaces a working one
+        try {
+            archive(zip);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted zip file: " + zip, e);
+        }
+        packages.put(urlPrefix, new Package(version, zip));
+    }
+
+    public void unregister(String urlPrefix) {
+        packages.remove(urlPrefix);
+    }
+
+    /**
+     * @return the version of the package registered for {@code urlPrefix}, null if there is none.
+     */
+    public String getVersion(String urlPrefix) {
+        Package p = packages.get(urlPrefix);
+        return p == null ? null : p.version;
+    }
+
+    /**
+     * @return the response from the package matching {@code url}, null if the url doesn't match any
+     * package or the package doesn't contain it.
+     */
+    public WebResourceResponse intercept(String url) {
+        Resource resource = serve(url);
+        return resource == null ? null : new WebResourceResponse(resource.mimeType, resource.encoding, resource.data);
+    }
+
+    /**
+     * @see #intercept(String)
+     */
+    Resource serve(String url) {
+        String prefix = null;
+        Package matched = null;
+        for (Map.Entry<String, Package> entry : packages.entrySet()) {
+            String key = entry.getKey();
+            if (matches(url, key) && (prefix == null || key.length() > prefix.length())) {
+                prefix = key;
+                matched = entry.getValue();
+            }
+        }
+        if (matched == null) {
+            return null;
+        }
+        requestCount.incrementAndGet();
+        String path = url.substring(prefix.length());
+        int end = path.length();
+        int query = path.indexOf('?');
+        int fragment = path.indexOf('#');
+        if (query >= 0) {
+            end = query;
+        }
+        if (fragment >= 0 && fragment < end) {
+            end = fragment;
+        }
+        try {
+            // '+' is not a space in a path
+            path = URLDecoder.decode(path.substring(0, end).replace("+", "%2B"), "UTF-8");
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            // a malformed escape, the package doesn't contain it
+            return null;
+        }
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (path.isEmpty() || path.endsWith("/")) {
+            path += "index.html";
+        }
+        try {
+            OfflineArchive archive = archive(matched.file);
+            InputStream in = archive.open(path);
+            if (in == null) {
+                return null;
+            }
+            hitCount.incrementAndGet();
+            bytesServed.addAndGet(archive.size(path));
+            String mimeType = getMimeType(path);
+            return new Resource(mimeType, isText(mimeType) ? "UTF-8" : null, in);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } catch (RuntimeException e) {
+            // a package corrupted after it was registered, the request goes to the network
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return true if {@code url} is in the package of {@code prefix}: {@code https://a.com/app}
+     * matches {@code https://a.com/app/x} and {@code https://a.com/app?x}, but not
+     * {@code https://a.com/apple}.
+     */
+    private static boolean matches(String url, String prefix) {
+        if (!url.startsWith(prefix)) {
+            return false;
+        }
+        if (prefix.endsWith("/") || url.length() == prefix.length()) {
+            return true;
+        }
+        char next = url.charAt(prefix.length());
+        return next == '/' || next == '?' || next == '#';
+    }
+
+    /**
+     * @return how many requests matched a package.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return how many requests were served from packages.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public float getHitRate() {
+        long requests = requestCount.get();
+        return requests == 0 ? 0 : (float) hitCount.get() / requests;
+    }
+
+    /**
+     * @return the uncompressed bytes served from packages.
+     */
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    private OfflineArchive archive(File file) throws IOException {
+        synchronized (archives) {
+            OfflineArchive archive = archives.get(file);
+            if (archive == null) {
+                archive = OfflineArchive.open(file);
+                archives.put(file, archive);
+                Iterator<OfflineArchive> iterator = archives.values().iterator();
+                while (archives.size() > maxOpenArchives && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+            return archive;
+        }
+    }
+
+    private static String getMimeType(String path) {
+        int dot = path.lastIndexOf('.');
+        String extension = dot < 0 ? "" : path.substring(dot + 1).toLowerCase();
+        // not known by the file name map on some versions
+        if ("js".equals(extension) || "mjs".equals(extension)) {
+            return "application/javascript";
+        }
+        if ("json".equals(extension)) {
+            return "application/json";
+        }
+        if ("css".equals(extension)) {
+            return "text/css";
+        }
+        if ("wasm".equals(extension)) {
+            return "application/wasm";
+        }
+        String mimeType = URLConnection.guessContentTypeFromName("file." + extension);
+        return mimeType != null ? mimeType : "application/octet-stream";
+    }
+
+    private static boolean isText(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.endsWith("/javascript") || mimeType.endsWith("/json")
+                || mimeType.endsWith("/xml") || mimeType.endsWith("+xml");
+    }
+}
@@ -0,0 +1,12 @@
+package wendu.dsbridge.special;
+
+/**
+ * A handler of {@link DWebView#callHandler(String, Object[], long, OnReturnValue)} which is
+ * notified when javascript doesn't return in time.
+ */
+public interface OnReturnValueOrTimeout<T> extends OnReturnValue<T> {
+    /**
+     * Called in main thread, the handler won't receive any value after it.
+     */
+    void onTimeout();
+}
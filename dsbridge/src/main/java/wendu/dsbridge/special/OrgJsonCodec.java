@@ -0,0 +1,158 @@
+package wendu.dsbridge.special;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Type;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The default {@link BridgeCodec}: a call is parsed into a {@link JSONObject} and the APIs get
+ * the values of org.json, a {@link JSONObject}, a {@link JSONArray}, a String, a Boolean, a Number
+ * or {@link JSONObject#NULL}. A parameter of another type gets the value if it is an instance of
+ * the type.
+ */
+public final class OrgJsonCodec implements BridgeCodec {
+
+    private static final class JsonCall implements Call {
+        private final JSONObject args;
+        private final String argStr;
+        private final String method;
+        private final int callbackId;
+        private final String callback;
+        private final String traceId;
+        private final int uploadId;
+
+        JsonCall(JSONObject args, String argStr, String method) throws JSONException {
+            this.args = args;
+            this.argStr = argStr;
+            this.method = method;
+            callbackId = args.has("_dscbid") ? args.getInt("_dscbid") : 0;
+            callback = args.has("_dscbstub") ? args.getString("_dscbstub") : null;
+            traceId = args.optString("_dstrace", null);
+            uploadId = args.has("_dsupload") ? args.getInt("_dsupload") : 0;
+        }
+
+        @Override
+        public String method() {
+            return method;
+        }
+
+        @Override
+        public int callbackId() {
+            return callbackId;
+        }
+
+        @Override
+        public String callback() {
+            return callback;
+        }
+
+        @Override
+        public String traceId() {
+            return traceId;
+        }
+
+        @Override
+        public int uploadId() {
+            return uploadId;
+        }
+
+        @Override
+        public Object data(Type type) throws JSONException {
+            if (!args.has("data")) {
+                return null;
+            }
+            Object value = args.get("data");
+            if (type == Object.class) {
+                return value;
+            }
+            if (value == JSONObject.NULL) {
+                return null;
+            }
+            if (type instanceof Class && ((Class<?>) type).isInstance(value)) {
+                return value;
+            }
+            if (value instanceof Number) {
+                Number number = (Number) value;
+                if (type == Integer.class) {
+                    return number.intValue();
+                } else if (type == Long.class) {
+                    return number.longValue();
+                } else if (type == Double.class) {
+                    return number.doubleValue();
+                }
+            }
+            throw new JSONException("The argument " + value + " can't be bound to " + type
+                    + ", set a codec which binds it, such as StreamingJsonCodec");
+        }
+
+        @Override
+        public int length() {
+            return argStr != null ? argStr.length() : args.toString().length();
+        }
+    }
+
+    @Override
+    public Call decodeCall(String argStr) throws JSONException {
+        return new JsonCall(new JSONObject(argStr), argStr, null);
+    }
+
+    @Override
+    public Call[] decodeBatch(String callsStr) throws JSONException {
+        JSONArray items = new JSONArray(callsStr);
+        Call[] calls = new Call[items.length()];
+        for (int i = 0; i < calls.length; i++) {
+            JSONObject item = items.optJSONObject(i);
+            JSONObject args = item == null ? null : item.optJSONObject("arg");
+            if (args != null) {
+                try {
+                    calls[i] = new JsonCall(args, null, item.optString("method"));
+                } catch (JSONException e) {
+                    // an invalid item
+                }
+            }
+        }
+        return calls;
+    }
+
+    @Override
+    public void encodeValue(Object value, StringBuilder out) throws JSONException {
+        // as JSONObject.put, the other objects are encoded as strings
+        BridgeEncoder.appendValue(out, value);
+    }
+
+    @Override
+    public void encodeArguments(Object[] args, StringBuilder out) throws JSONException {
+        out.append('[');
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            // as JSONArray, the collections, the maps and the arrays are encoded as arrays and objects
+            BridgeEncoder.appendValue(out, wrap(args[i]));
+        }
+        out.append(']');
+    }
+
+    /**
+     * @return the value as {@code JSONObject.wrap} of Android, which is API 19, wraps it.
+     */
+    private static Object wrap(Object value) throws JSONException {
+        if (value instanceof Collection) {
+            return new JSONArray((Collection) value);
+        } else if (value instanceof Map) {
+            return new JSONObject((Map) value);
+        } else if (value != null && value.getClass().isArray()) {
+            JSONArray array = new JSONArray();
+            for (int i = 0, length = Array.getLength(value); i < length; i++) {
+                array.put(wrap(Array.get(value, i)));
+            }
+            return array;
+        }
+        return value;
+    }
+}
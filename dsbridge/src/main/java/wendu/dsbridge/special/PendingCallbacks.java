@@ -0,0 +1,278 @@
+package wendu.dsbridge.special;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The handlers of javascript calls ({@link DWebView#callHandler(String, Object[], long, OnReturnValue)})
+ * waiting for their return values.
+ * <p>
+ * Handlers are added in any thread without locking, to a queue which the main thread drains into
+ * an open addressing table keyed by the int call id, so ids are never boxed. The table is only
+ * accessed in the main thread, the other methods must be called there. Handlers with a timeout
+ * are also put in a timer wheel which ticks in the main thread only while there are any; a handler
+ * that is not answered in time is removed, and notified if it is an {@link OnReturnValueOrTimeout}.
+ */
+final class PendingCallbacks {
+
+    private static final int TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 64;
+
+    static final class Entry {
+        final int id;
+        final OnReturnValue handler;
+        // the javascript handler and when it was called, for BridgeMetrics
+        final String method;
+        final long startNanos;
+        // the tracer which began the async section of the call, null if it is not traced
+        final BridgeTracer tracer;
+        final String traceId;
+        final long timeoutMillis;
+        int rounds;
+        boolean done;
+
+        Entry(int id, OnReturnValue handler, long timeoutMillis, String method, long startNanos,
+              BridgeTracer tracer, String traceId) {
+            this.id = id;
+            this.handler = handler;
+            this.timeoutMillis = timeoutMillis;
+            this.method = method;
+            this.startNanos = startNanos;
+            this.tracer = tracer;
+            this.traceId = traceId;
+        }
+
+        /**
+         * End the async section of a call which is never answered.
+         */
+        void endTrace() {
+            if (tracer != null) {
+                tracer.endAsync("js " + method, "java:h" + id, traceId);
+            }
+        }
+
+        /**
+         * Notify the handler of a call which is never answered, if it is an {@link OnReturnValueOrTimeout}.
+         */
+        void timeout() {
+            endTrace();
+            if (handler instanceof OnReturnValueOrTimeout) {
+                ((OnReturnValueOrTimeout) handler).onTimeout();
+            }
+        }
+    }
+
+    private final BridgeCore.Platform platform;
+    // the handlers added since the main thread last took them
+    private final ConcurrentLinkedQueue<Entry> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private int[] keys = new int[16];
+    private Entry[] values = new Entry[16];
+    private int size = 0;
+
+    private final ArrayList<Entry>[] wheel;
+    private int cursor = 0;
+    private int timedCount = 0;
+    private boolean ticking = false;
+    private volatile long expiredCount = 0;
+
+    private final Runnable tickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tick();
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    PendingCallbacks(BridgeCore.Platform platform) {
+        this.platform = platform;
+        wheel = new ArrayList[WHEEL_SIZE];
+    }
+
+    /**
+     * Can be called in any thread, the handler is taken by the main thread on its next access or
+     * {@link #drainAdded()}.
+     *
+     * @param timeoutMillis if not positive, the handler waits until it is answered. It is counted
+     *                      from when the main thread takes the handler.
+     * @param tracer        the tracer which began the async section of the call, ended if the
+     *                      handler is never answered, null if the call is not traced.
+     */
+    void put(int id, OnReturnValue handler, long timeoutMillis, String method, long startNanos,
+             BridgeTracer tracer, String traceId) {
+        pendingCount.incrementAndGet();
+        added.offer(new Entry(id, handler, timeoutMillis, method, startNanos, tracer, traceId));
+    }
+
+    /**
+     * Move the added handlers into the table, and their timeouts into the wheel.
+     */
+    void drainAdded() {
+        Entry entry;
+        while ((entry = added.poll()) != null) {
+            if ((size + 1) * 2 > values.length) {
+                resize(values.length * 2);
+            }
+            insert(entry.id, entry);
+            size++;
+            if (entry.timeoutMillis > 0) {
+                long ticks = Math.max(1, (entry.timeoutMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+                int slot = (int) ((cursor + ticks) % WHEEL_SIZE);
+                entry.rounds = (int) Math.min(Integer.MAX_VALUE, (ticks - 1) / WHEEL_SIZE);
+                if (wheel[slot] == null) {
+                    wheel[slot] = new ArrayList<>();
+                }
+                wheel[slot].add(entry);
+                timedCount++;
+                if (!ticking) {
+                    ticking = true;
+                    platform.postDelayed(tickRunnable, TICK_MILLIS);
+                }
+            }
+        }
+    }
+
+    Entry get(int id) {
+        drainAdded();
+        int i = find(id);
+        return i < 0 ? null : values[i];
+    }
+
+    Entry remove(int id) {
+        drainAdded();
+        int i = find(id);
+        if (i < 0) {
+            return null;
+        }
+        Entry entry = values[i];
+        entry.done = true;
+        removeAt(i);
+        return entry;
+    }
+
+    /**
+     * Remove all the handlers without notifying them, their trace sections are ended.
+     */
+    void clear() {
+        drainAdded();
+        for (Entry entry : values) {
+            if (entry != null) {
+                entry.done = true;
+                entry.endTrace();
+            }
+        }
+        pendingCount.addAndGet(-size);
+        keys = new int[16];
+        values = new Entry[16];
+        size = 0;
+    }
+
+    /**
+     * Can be called in any thread.
+     */
+    int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Can be called in any thread.
+     */
+    long getExpiredCount() {
+        return expiredCount;
+    }
+
+    private void tick() {
+        drainAdded();
+        ArrayList<Entry> expired = null;
+        cursor = (cursor + 1) % WHEEL_SIZE;
+        ArrayList<Entry> bucket = wheel[cursor];
+        if (bucket != null) {
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                Entry entry = bucket.get(i);
+                if (!entry.done && entry.rounds > 0) {
+                    entry.rounds--;
+                    continue;
+                }
+                bucket.set(i, bucket.get(bucket.size() - 1));
+                bucket.remove(bucket.size() - 1);
+                timedCount--;
+                if (!entry.done) {
+                    entry.done = true;
+                    removeAt(find(entry.id));
+                    expiredCount++;
+                    if (expired == null) {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(entry);
+                }
+            }
+        }
+        ticking = timedCount > 0;
+        if (ticking) {
+            platform.postDelayed(tickRunnable, TICK_MILLIS);
+        }
+        if (expired != null) {
+            for (Entry entry : expired) {
+                entry.timeout();
+            }
+        }
+    }
+
+    private static int index(int id, int mask) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private int find(int id) {
+        int mask = values.length - 1;
+        for (int i = index(id, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(int id, Entry entry) {
+        int mask = values.length - 1;
+        int i = index(id, mask);
+        while (values[i] != null) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = id;
+        values[i] = entry;
+    }
+
+    /**
+     * Linear probing removal, shifts the following entries back instead of leaving a tombstone.
+     */
+    private void removeAt(int i) {
+        int mask = values.length - 1;
+        values[i] = null;
+        size--;
+        pendingCount.decrementAndGet();
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = index(keys[j], mask);
+            boolean movable = j > i ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Entry[] oldValues = values;
+        keys = new int[capacity];
+        values = new Entry[capacity];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package wendu.dsbridge.special;
+
+/**
+ * What to do when a call is made before the page is ready and the startup queue is full,
+ * see {@link DWebView#setStartupQueue(int, StartupOverflowPolicy)}.
+ */
+public enum StartupOverflowPolicy {
+    /**
+     * Drop the oldest of the queued calls with the lowest priority, or the new call if its
+     * priority is lower, see {@link DWebView#setStartupPriority(String, int)}.
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the oldest queued call to the same javascript handler, such as an outdated progress
+     * event, or the call {@link #DROP_OLDEST} drops if there is none.
+     */
+    COALESCE,
+    /**
+     * Drop the new call.
+     */
+    REJECT
+}
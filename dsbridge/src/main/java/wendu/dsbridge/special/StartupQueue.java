@@ -0,0 +1,144 @@
+package wendu.dsbridge.special;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The javascript calls made before the page is ready (before dsinit), bounded by a capacity
+ * and flushed in priority order, the calls with the same priority keep their order.
+ */
+final class StartupQueue {
+
+    private static final Comparator<BridgeCore.CallInfo> PRIORITY_ORDER = new Comparator<BridgeCore.CallInfo>() {
+        @Override
+        public int compare(BridgeCore.CallInfo a, BridgeCore.CallInfo b) {
+            return a.priority > b.priority ? -1 : (a.priority == b.priority ? 0 : 1);
+        }
+    };
+
+    private final ArrayDeque<BridgeCore.CallInfo> calls = new ArrayDeque<>();
+    private int capacity;
+    private StartupOverflowPolicy policy;
+    private long pageStartedAt = -1;
+
+    private long lastReadyMillis = -1;
+    private long queuedCount = 0;
+    private long droppedCount = 0;
+    private long dispatchedCount = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+
+    StartupQueue(int capacity, StartupOverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    synchronized void configure(int capacity, StartupOverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * @return the call dropped to keep the queue within its capacity, null if none.
+     */
+    synchronized BridgeCore.CallInfo add(BridgeCore.CallInfo info) {
+        if (capacity <= 0) {
+            droppedCount++;
+            return info;
+        }
+        BridgeCore.CallInfo dropped = null;
+        if (calls.size() >= capacity) {
+            if (policy == StartupOverflowPolicy.REJECT) {
+                droppedCount++;
+                return info;
+            }
+            if (policy == StartupOverflowPolicy.COALESCE) {
+                Iterator<BridgeCore.CallInfo> iterator = calls.iterator();
+                while (iterator.hasNext()) {
+                    BridgeCore.CallInfo queued = iterator.next();
+                    if (queued.method.equals(info.method)) {
+                        iterator.remove();
+                        dropped = queued;
+                        break;
+                    }
+                }
+            }
+            if (dropped == null) {
+                dropped = lowestPriority();
+                // the new call is the one which matters least
+                if (dropped.priority > info.priority) {
+                    droppedCount++;
+                    return info;
+                }
+                calls.remove(dropped);
+            }
+            droppedCount++;
+        }
+        info.queuedAt = uptimeMillis();
+        calls.addLast(info);
+        queuedCount++;
+        return dropped;
+    }
+
+    /**
+     * Start queueing for a new page.
+     *
+     * @return the calls queued for the previous page which was never ready.
+     */
+    synchronized List<BridgeCore.CallInfo> reset() {
+        List<BridgeCore.CallInfo> discarded = new ArrayList<>(calls);
+        droppedCount += discarded.size();
+        calls.clear();
+        pageStartedAt = uptimeMillis();
+        return discarded;
+    }
+
+    /**
+     * The page is ready.
+     *
+     * @return the queued calls in the order they should be dispatched.
+     */
+    synchronized List<BridgeCore.CallInfo> drain() {
+        long now = uptimeMillis();
+        if (pageStartedAt >= 0) {
+            lastReadyMillis = now - pageStartedAt;
+        }
+        List<BridgeCore.CallInfo> ordered = new ArrayList<>(calls);
+        calls.clear();
+        // stable, so the calls with the same priority keep their order
+        Collections.sort(ordered, PRIORITY_ORDER);
+        for (BridgeCore.CallInfo info : ordered) {
+            long wait = now - info.queuedAt;
+            totalWaitMillis += wait;
+            maxWaitMillis = Math.max(maxWaitMillis, wait);
+        }
+        dispatchedCount += ordered.size();
+        return ordered;
+    }
+
+    synchronized StartupStats getStats() {
+        return new StartupStats(lastReadyMillis, queuedCount, droppedCount, calls.size(),
+                dispatchedCount, totalWaitMillis, maxWaitMillis);
+    }
+
+    /**
+     * @return the oldest of the queued calls with the lowest priority.
+     */
+    private BridgeCore.CallInfo lowestPriority() {
+        BridgeCore.CallInfo lowest = null;
+        for (BridgeCore.CallInfo queued : calls) {
+            if (lowest == null || queued.priority < lowest.priority) {
+                lowest = queued;
+            }
+        }
+        return lowest;
+    }
+
+    private static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,69 @@
+package wendu.dsbridge.special;
+
+/**
+ * A snapshot of the calls made before the page is ready,
+ * see {@link DWebView#setStartupQueue(int, StartupOverflowPolicy)}.
+ */
+public final class StartupStats {
+    private final long lastReadyMillis;
+    private final long queuedCount;
+    private final long droppedCount;
+    private final int pendingCount;
+    private final long totalWaitMillis;
+    private final long maxWaitMillis;
+    private final long dispatchedCount;
+
+    StartupStats(long lastReadyMillis, long queuedCount, long droppedCount, int pendingCount,
+                 long dispatchedCount, long totalWaitMillis, long maxWaitMillis) {
+        this.lastReadyMillis = lastReadyMillis;
+        this.queuedCount = queuedCount;
+        this.droppedCount = droppedCount;
+        this.pendingCount = pendingCount;
+        this.dispatchedCount = dispatchedCount;
+        this.totalWaitMillis = totalWaitMillis;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * @return the time from loading the last page to its dsinit, -1 if no page is ready yet.
+     */
+    public long getLastReadyMillis() {
+        return lastReadyMillis;
+    }
+
+    /**
+     * @return how many calls were queued before their pages were ready.
+     */
+    public long getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * @return how many queued calls were dropped because the queue was full or the page was left.
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the calls waiting for the current page to be ready.
+     */
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    public float getAverageWaitMillis() {
+        return dispatchedCount == 0 ? 0 : (float) totalWaitMillis / dispatchedCount;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "StartupStats{lastReadyMillis=" + lastReadyMillis + ", queuedCount=" + queuedCount
+                + ", droppedCount=" + droppedCount + ", pendingCount=" + pendingCount
+                + ", averageWaitMillis=" + getAverageWaitMillis() + ", maxWaitMillis=" + maxWaitMillis + "}";
+    }
+}
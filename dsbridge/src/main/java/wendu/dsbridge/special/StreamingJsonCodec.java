@@ -0,0 +1,835 @@
+package wendu.dsbridge.special;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link BridgeCodec} which reads the calls in one pass without building a tree: the callback
+ * and the trace of a call are read directly, and its argument is only located until the API binds
+ * it to the type of its parameter.
+ * <p>
+ * The argument is bound to:
+ * <ul>
+ * <li>the values of org.json for {@code Object}, {@link JSONObject} and {@link JSONArray},
+ * as {@link OrgJsonCodec} does, so the existing APIs work unchanged</li>
+ * <li>String, Boolean, the boxed numbers, Number and enums (by name)</li>
+ * <li>arrays, {@link Collection}s and {@link Map}s with String keys, of the types above</li>
+ * <li>other classes with a constructor without parameters: the properties of the JSON object
+ * are set to the public fields which are neither static, final nor transient</li>
+ * </ul>
+ * The values sent to javascript are encoded the same way: maps, collections, arrays and
+ * the public fields of such classes are written as JSON, without converting them to org.json.
+ */
+public final class StreamingJsonCodec implements BridgeCodec {
+
+    /**
+     * The bindings of the classes which are read or written, resolved once in the process.
+     */
+    private static final ConcurrentHashMap<Class<?>, Binding> BINDINGS = new ConcurrentHashMap<>();
+
+    /**
+     * How a class is created and which fields are bound by name.
+     */
+    private static final class Binding {
+        // null if the class has no constructor without parameters
+        final Constructor<?> constructor;
+        final Map<String, Property> properties;
+
+        Binding(Constructor<?> constructor, Map<String, Property> properties) {
+            this.constructor = constructor;
+            this.properties = properties;
+        }
+    }
+
+    private static final class Property {
+        final Field field;
+        final Type type;
+        final boolean primitive;
+
+        Property(Field field) {
+            this.field = field;
+            type = field.getGenericType();
+            primitive = field.getType().isPrimitive();
+        }
+    }
+
+    private static final class StreamingCall implements Call {
+        private final String source;
+        private final int start;
+        private int end;
+        private String method;
+        private int callbackId;
+        private String callback;
+        private String traceId;
+        private int uploadId;
+        // where the "data" argument starts in the source, -1 if there is none
+        private int dataStart = -1;
+
+        StreamingCall(String source, int start) {
+            this.source = source;
+            this.start = start;
+        }
+
+        @Override
+        public String method() {
+            return method;
+        }
+
+        @Override
+        public int callbackId() {
+            return callbackId;
+        }
+
+        @Override
+        public String callback() {
+            return callback;
+        }
+
+        @Override
+        public String traceId() {
+            return traceId;
+        }
+
+        @Override
+        public int uploadId() {
+            return uploadId;
+        }
+
+        @Override
+        public Object data(Type type) throws JSONException {
+            if (dataStart < 0) {
+                return null;
+            }
+            // a valid JSON of another shape must not throw out of the bridge
+            try {
+                return readValue(new JsonCursor(source, dataStart), type);
+            } catch (IllegalArgumentException e) {
+                throw new JSONException("The argument can't be bound to " + type + ": " + e.getMessage());
+            } catch (ClassCastException e) {
+                throw new JSONException("The argument can't be bound to " + type + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+    }
+
+    /**
+     * Reads a JSON string from a position, the values are read or skipped one by one.
+     */
+    private static final class JsonCursor {
+        private final String s;
+        private int pos;
+
+        JsonCursor(String s, int pos) {
+            this.s = s;
+            this.pos = pos;
+        }
+
+        /**
+         * @return the next character which is not a whitespace, without consuming it.
+         */
+        char peek() throws JSONException {
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return c;
+                }
+                pos++;
+            }
+            throw error("Unexpected end of input");
+        }
+
+        void expect(char c) throws JSONException {
+            if (peek() != c) {
+                throw error("Expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        /**
+         * Consume the next character if it is {@code c}.
+         */
+        boolean consume(char c) throws JSONException {
+            if (peek() == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return true if there is another member of the object or item of the array, which
+         * is closed by {@code close}.
+         */
+        boolean hasNext(char close, boolean first) throws JSONException {
+            if (consume(close)) {
+                return false;
+            }
+            if (!first) {
+                expect(',');
+            }
+            return true;
+        }
+
+        void end() throws JSONException {
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    pos--;
+                    throw error("Unexpected content");
+                }
+            }
+        }
+
+        void readLiteral(String literal) throws JSONException {
+            if (!s.startsWith(literal, pos)) {
+                throw error("Expected " + literal);
+            }
+            pos += literal.length();
+        }
+
+        boolean readBoolean() throws JSONException {
+            if (peek() == 't') {
+                readLiteral("true");
+                return true;
+            }
+            readLiteral("false");
+            return false;
+        }
+
+        /**
+         * @return true and consume it if the next value is null.
+         */
+        boolean readNull() throws JSONException {
+            if (peek() == 'n') {
+                readLiteral("null");
+                return true;
+            }
+            return false;
+        }
+
+        String readString() throws JSONException {
+            expect('"');
+            int start = pos;
+            // most strings have no escape
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == '"') {
+                    return s.substring(start, pos++);
+                }
+                if (c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            StringBuilder sb = new StringBuilder(pos - start + 16);
+            sb.append(s, start, pos);
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length()) {
+                    break;
+                }
+                c = s.charAt(pos++);
+                switch (c) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > s.length()) {
+                            throw error("Unterminated escape sequence");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid escape sequence");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        sb.append(c);
+                        break;
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        /**
+         * @return an Integer, a Long or a Double, as JSONTokener does.
+         */
+        Number readNumber() throws JSONException {
+            peek();
+            int start = pos;
+            boolean integer = true;
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c >= '0' && c <= '9' || c == '-' || c == '+') {
+                    pos++;
+                } else if (c == '.' || c == 'e' || c == 'E') {
+                    integer = false;
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            if (pos == start) {
+                throw error("Expected a value");
+            }
+            int length = pos - start;
+            // up to 18 digits fit in a long
+            if (integer && length < 19) {
+                boolean negative = s.charAt(start) == '-';
+                long value = 0;
+                int i = negative ? start + 1 : start;
+                if (i == pos) {
+                    throw error("Invalid number");
+                }
+                for (; i < pos; i++) {
+                    char c = s.charAt(i);
+                    if (c < '0' || c > '9') {
+                        throw error("Invalid number");
+                    }
+                    value = value * 10 + (c - '0');
+                }
+                if (negative) {
+                    value = -value;
+                }
+                if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                    return (int) value;
+                }
+                return value;
+            }
+            try {
+                String literal = s.substring(start, pos);
+                if (integer) {
+                    try {
+                        return Long.parseLong(literal);
+                    } catch (NumberFormatException e) {
+                        // larger than a long
+                    }
+                }
+                return Double.valueOf(literal);
+            } catch (NumberFormatException e) {
+                throw error("Invalid number");
+            }
+        }
+
+        void skipValue() throws JSONException {
+            char c = peek();
+            switch (c) {
+                case '"':
+                    skipString();
+                    break;
+                case '{':
+                case '[':
+                    skipContainer();
+                    break;
+                case 't':
+                    readLiteral("true");
+                    break;
+                case 'f':
+                    readLiteral("false");
+                    break;
+                case 'n':
+                    readLiteral("null");
+                    break;
+                default:
+                    readNumber();
+                    break;
+            }
+        }
+
+        private void skipString() throws JSONException {
+            pos++;
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return;
+                }
+                if (c == '\\') {
+                    pos++;
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private void skipContainer() throws JSONException {
+            int depth = 0;
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                pos++;
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        return;
+                    }
+                }
+            }
+            throw error("Unterminated object or array");
+        }
+
+        JSONException error(String message) {
+            return new JSONException(message + " at character " + pos);
+        }
+    }
+
+    @Override
+    public Call decodeCall(String argStr) throws JSONException {
+        JsonCursor cursor = new JsonCursor(argStr, 0);
+        StreamingCall call = readCall(cursor);
+        cursor.end();
+        return call;
+    }
+
+    @Override
+    public Call[] decodeBatch(String callsStr) throws JSONException {
+        JsonCursor cursor = new JsonCursor(callsStr, 0);
+        List<Call> calls = new ArrayList<>();
+        cursor.expect('[');
+        for (boolean first = true; cursor.hasNext(']', first); first = false) {
+            if (cursor.peek() != '{') {
+                cursor.skipValue();
+                calls.add(null);
+                continue;
+            }
+            cursor.expect('{');
+            String method = "";
+            StreamingCall call = null;
+            for (boolean firstMember = true; cursor.hasNext('}', firstMember); firstMember = false) {
+                String name = cursor.readString();
+                cursor.expect(':');
+                if ("method".equals(name) && cursor.peek() == '"') {
+                    method = cursor.readString();
+                } else if ("arg".equals(name) && cursor.peek() == '{') {
+                    call = readCall(cursor);
+                } else {
+                    cursor.skipValue();
+                }
+            }
+            if (call != null) {
+                call.method = method;
+            }
+            calls.add(call);
+        }
+        cursor.end();
+        return calls.toArray(new Call[calls.size()]);
+    }
+
+    private static StreamingCall readCall(JsonCursor cursor) throws JSONException {
+        cursor.peek();
+        StreamingCall call = new StreamingCall(cursor.s, cursor.pos);
+        cursor.expect('{');
+        for (boolean first = true; cursor.hasNext('}', first); first = false) {
+            String name = cursor.readString();
+            cursor.expect(':');
+            switch (name) {
+                case "data":
+                    call.dataStart = cursor.pos;
+                    cursor.skipValue();
+                    break;
+                case "_dscbid":
+                    call.callbackId = cursor.readNumber().intValue();
+                    break;
+                case "_dscbstub":
+                    call.callback = cursor.readString();
+                    break;
+                case "_dstrace":
+                    call.traceId = cursor.readNull() ? null : cursor.readString();
+                    break;
+                case "_dsupload":
+                    call.uploadId = cursor.readNumber().intValue();
+                    break;
+                default:
+                    cursor.skipValue();
+                    break;
+            }
+        }
+        call.end = cursor.pos;
+        return call;
+    }
+
+    private static Object readValue(JsonCursor cursor, Type type) throws JSONException {
+        Class<?> raw = rawType(type);
+        if (raw == Object.class || raw == JSONObject.class || raw == JSONArray.class) {
+            return cast(raw, readJson(cursor));
+        }
+        if (cursor.readNull()) {
+            return null;
+        }
+        if (raw == String.class || raw == CharSequence.class) {
+            return cursor.readString();
+        }
+        if (raw == Boolean.class || raw == boolean.class) {
+            return cursor.readBoolean();
+        }
+        if (raw.isPrimitive() || Number.class.isAssignableFrom(raw)) {
+            return toNumber(raw, cursor.readNumber(), cursor);
+        }
+        if (raw.isEnum()) {
+            String name = cursor.readString();
+            try {
+                return Enum.valueOf(raw.asSubclass(Enum.class), name);
+            } catch (IllegalArgumentException e) {
+                throw cursor.error("No constant " + name + " in " + raw.getName());
+            }
+        }
+        if (raw.isArray()) {
+            Type component = type instanceof GenericArrayType
+                    ? ((GenericArrayType) type).getGenericComponentType() : raw.getComponentType();
+            List<Object> items = readList(cursor, component);
+            Object array = Array.newInstance(raw.getComponentType(), items.size());
+            for (int i = 0; i < items.size(); i++) {
+                Object item = items.get(i);
+                if (item == null && raw.getComponentType().isPrimitive()) {
+                    throw cursor.error("null can't be an item of " + raw.getComponentType().getName() + "[]");
+                }
+                Array.set(array, i, item);
+            }
+            return array;
+        }
+        if (Collection.class.isAssignableFrom(raw)) {
+            Collection<Object> collection = newCollection(raw, cursor);
+            collection.addAll(readList(cursor, typeArgument(type, 0)));
+            return collection;
+        }
+        if (Map.class.isAssignableFrom(raw)) {
+            Map<String, Object> map = newMap(raw, cursor);
+            Type valueType = typeArgument(type, 1);
+            cursor.expect('{');
+            for (boolean first = true; cursor.hasNext('}', first); first = false) {
+                String name = cursor.readString();
+                cursor.expect(':');
+                map.put(name, readValue(cursor, valueType));
+            }
+            return map;
+        }
+        return readObject(cursor, raw);
+    }
+
+    private static List<Object> readList(JsonCursor cursor, Type itemType) throws JSONException {
+        List<Object> items = new ArrayList<>();
+        cursor.expect('[');
+        for (boolean first = true; cursor.hasNext(']', first); first = false) {
+            items.add(readValue(cursor, itemType));
+        }
+        return items;
+    }
+
+    private static Object readObject(JsonCursor cursor, Class<?> type) throws JSONException {
+        Binding binding = bindingOf(type);
+        Object object;
+        try {
+            object = binding.constructor.newInstance();
+        } catch (Exception e) {
+            throw cursor.error("Can't create " + type.getName() + ", it needs a constructor without parameters");
+        }
+        cursor.expect('{');
+        for (boolean first = true; cursor.hasNext('}', first); first = false) {
+            String name = cursor.readString();
+            cursor.expect(':');
+            Property property = binding.properties.get(name);
+            if (property == null) {
+                cursor.skipValue();
+                continue;
+            }
+            Object value = readValue(cursor, property.type);
+            // a null is the default value of a primitive field
+            if (value != null || !property.primitive) {
+                try {
+                    property.field.set(object, value);
+                } catch (IllegalAccessException e) {
+                    throw cursor.error("Can't set " + name + " of " + type.getName());
+                } catch (IllegalArgumentException e) {
+                    throw cursor.error("Can't set " + name + " of " + type.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+        return object;
+    }
+
+    /**
+     * @return the value as org.json parses it.
+     */
+    private static Object readJson(JsonCursor cursor) throws JSONException {
+        switch (cursor.peek()) {
+            case '"':
+                return cursor.readString();
+            case '{':
+                JSONObject object = new JSONObject();
+                cursor.expect('{');
+                for (boolean first = true; cursor.hasNext('}', first); first = false) {
+                    String name = cursor.readString();
+                    cursor.expect(':');
+                    object.put(name, readJson(cursor));
+                }
+                return object;
+            case '[':
+                JSONArray array = new JSONArray();
+                cursor.expect('[');
+                for (boolean first = true; cursor.hasNext(']', first); first = false) {
+                    array.put(readJson(cursor));
+                }
+                return array;
+            case 't':
+            case 'f':
+                return cursor.readBoolean();
+            case 'n':
+                cursor.readLiteral("null");
+                return JSONObject.NULL;
+            default:
+                return cursor.readNumber();
+        }
+    }
+
+    private static Object cast(Class<?> type, Object value) throws JSONException {
+        if (type == Object.class) {
+            return value;
+        }
+        if (value == JSONObject.NULL) {
+            return null;
+        }
+        if (!type.isInstance(value)) {
+            throw new JSONException("The value " + value + " can't be bound to " + type.getName());
+        }
+        return value;
+    }
+
+    private static Object toNumber(Class<?> type, Number number, JsonCursor cursor) throws JSONException {
+        if (type == Integer.class || type == int.class) {
+            return number.intValue();
+        } else if (type == Long.class || type == long.class) {
+            return number.longValue();
+        } else if (type == Double.class || type == double.class) {
+            return number.doubleValue();
+        } else if (type == Float.class || type == float.class) {
+            return number.floatValue();
+        } else if (type == Short.class || type == short.class) {
+            return number.shortValue();
+        } else if (type == Byte.class || type == byte.class) {
+            return number.byteValue();
+        } else if (type == Number.class) {
+            return number;
+        }
+        throw cursor.error("A number can't be bound to " + type.getName());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<Object> newCollection(Class<?> type, JsonCursor cursor) throws JSONException {
+        if (type.isAssignableFrom(ArrayList.class)) {
+            return new ArrayList<>();
+        }
+        if (type.isAssignableFrom(LinkedHashSet.class)) {
+            return new LinkedHashSet<>();
+        }
+        return (Collection<Object>) newInstance(type, cursor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> newMap(Class<?> type, JsonCursor cursor) throws JSONException {
+        if (type.isAssignableFrom(LinkedHashMap.class)) {
+            return new LinkedHashMap<>();
+        }
+        return (Map<String, Object>) newInstance(type, cursor);
+    }
+
+    private static Object newInstance(Class<?> type, JsonCursor cursor) throws JSONException {
+        try {
+            return type.newInstance();
+        } catch (Exception e) {
+            throw cursor.error("Can't create " + type.getName());
+        }
+    }
+
+    private static Class<?> rawType(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        }
+        if (type instanceof ParameterizedType) {
+            return rawType(((ParameterizedType) type).getRawType());
+        }
+        if (type instanceof GenericArrayType) {
+            Class<?> component = rawType(((GenericArrayType) type).getGenericComponentType());
+            return Array.newInstance(component, 0).getClass();
+        }
+        if (type instanceof WildcardType) {
+            return rawType(((WildcardType) type).getUpperBounds()[0]);
+        }
+        // a type variable
+        return Object.class;
+    }
+
+    /**
+     * @return the type argument of a collection or of a map, Object if it is not declared.
+     */
+    private static Type typeArgument(Type type, int index) {
+        if (type instanceof ParameterizedType) {
+            Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+            if (index < arguments.length) {
+                return arguments[index];
+            }
+        }
+        return Object.class;
+    }
+
+    private static Binding bindingOf(Class<?> type) {
+        Binding binding = BINDINGS.get(type);
+        if (binding == null) {
+            Constructor<?> constructor;
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (Exception e) {
+                constructor = null;
+            }
+            Map<String, Property> properties = new LinkedHashMap<>();
+            for (Field field : type.getFields()) {
+                int modifiers = field.getModifiers();
+                if ((modifiers & (Modifier.STATIC | Modifier.FINAL | Modifier.TRANSIENT)) == 0) {
+                    properties.put(field.getName(), new Property(field));
+                }
+            }
+            binding = new Binding(constructor, Collections.unmodifiableMap(properties));
+            Binding old = BINDINGS.putIfAbsent(type, binding);
+            if (old != null) {
+                binding = old;
+            }
+        }
+        return binding;
+    }
+
+    @Override
+    public void encodeValue(Object value, StringBuilder out) throws JSONException {
+        writeValue(value, out);
+    }
+
+    @Override
+    public void encodeArguments(Object[] args, StringBuilder out) throws JSONException {
+        out.append('[');
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            writeValue(args[i], out);
+        }
+        out.append(']');
+    }
+
+    private static void writeValue(Object value, StringBuilder out) throws JSONException {
+        if (value == null || value == JSONObject.NULL || value instanceof String || value instanceof Number
+                || value instanceof Boolean || value instanceof JSONObject || value instanceof JSONArray) {
+            BridgeEncoder.appendValue(out, value);
+        } else if (value instanceof CharSequence || value instanceof Character) {
+            BridgeEncoder.appendQuoted(out, value.toString());
+        } else if (value instanceof Enum) {
+            BridgeEncoder.appendQuoted(out, ((Enum<?>) value).name());
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                BridgeEncoder.appendQuoted(out, String.valueOf(entry.getKey()));
+                out.append(':');
+                writeValue(entry.getValue(), out);
+            }
+            out.append('}');
+        } else if (value instanceof Iterable) {
+            out.append('[');
+            boolean first = true;
+            for (Object item : (Iterable<?>) value) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeValue(item, out);
+            }
+            out.append(']');
+        } else if (value.getClass().isArray()) {
+            out.append('[');
+            for (int i = 0, length = Array.getLength(value); i < length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                writeValue(Array.get(value, i), out);
+            }
+            out.append(']');
+        } else if (isPlatformClass(value.getClass())) {
+            BridgeEncoder.appendQuoted(out, value.toString());
+        } else {
+            writeObject(value, out);
+        }
+    }
+
+    private static void writeObject(Object value, StringBuilder out) throws JSONException {
+        out.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Property> property : bindingOf(value.getClass()).properties.entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            BridgeEncoder.appendQuoted(out, property.getKey());
+            out.append(':');
+            try {
+                writeValue(property.getValue().field.get(value), out);
+            } catch (IllegalAccessException e) {
+                throw new JSONException("Can't get " + property.getKey() + " of " + value.getClass().getName());
+            }
+        }
+        out.append('}');
+    }
+
+    /**
+     * @return true for the classes of the platform, such as Date, which are encoded as strings.
+     */
+    private static boolean isPlatformClass(Class<?> type) {
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("android.");
+    }
+}
@@ -0,0 +1,73 @@
+package wendu.dsbridge.special;
+
+import android.annotation.TargetApi;
+import android.net.Uri;
+import android.os.Build;
+import android.webkit.WebMessage;
+import android.webkit.WebMessagePort;
+import android.webkit.WebView;
+
+import java.util.UUID;
+
+/**
+ * Posts messages to javascript through a {@link WebMessagePort} as data, so that
+ * they don't need to be compiled as scripts like {@link WebView#evaluateJavascript}.
+ * <p>
+ * The other port of the channel is transferred to the page with a
+ * {@code "_dsbridge_port:<nonce>"} message posted to the origin of the page, the nonce is
+ * the one returned by dsinit, so a frame of the page can't pass another port to dsbridge.js.
+ * Messages posted before the page picks it up are queued by the channel.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class WebMessagePortTransport implements JavascriptTransport {
+    static final String PORT_MESSAGE = "_dsbridge_port";
+
+    private final WebMessagePort port;
+
+    private WebMessagePortTransport(WebMessagePort port) {
+        this.port = port;
+    }
+
+    /**
+     * @return a random nonce which the page gets from dsinit, to accept the port posted by native.
+     */
+    static String newNonce() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Create a message channel and transfer one port of it to the page of the webView,
+     * must be called in main thread.
+     *
+     * @return null if the page has no origin the port can be posted to, such as a file or
+     * a data url, then the messages are evaluated as scripts.
+     */
+    static WebMessagePortTransport connect(WebView webView, String nonce) {
+        Uri origin = originOf(webView.getUrl());
+        if (origin == null) {
+            return null;
+        }
+        WebMessagePort[] ports = webView.createWebMessageChannel();
+        webView.postWebMessage(new WebMessage(PORT_MESSAGE + ":" + nonce, new WebMessagePort[]{ports[1]}), origin);
+        return new WebMessagePortTransport(ports[0]);
+    }
+
+    private static Uri originOf(String url) {
+        Uri uri = url == null ? null : Uri.parse(url);
+        if (uri == null || uri.getHost() == null
+                || !("http".equals(uri.getScheme()) || "https".equals(uri.getScheme()))) {
+            return null;
+        }
+        return Uri.parse(uri.getScheme() + "://" + uri.getHost() + (uri.getPort() != -1 ? ":" + uri.getPort() : ""));
+    }
+
+    @Override
+    public void deliver(String messages) {
+        port.postMessage(new WebMessage(messages));
+    }
+
+    @Override
+    public void close() {
+        port.close();
+    }
+}
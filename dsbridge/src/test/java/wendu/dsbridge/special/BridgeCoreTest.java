@@ -0,0 +1,334 @@
+package wendu.dsbridge.special;
+
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the bridge on the JVM with a platform which is always in main thread and records what is
+ * sent to javascript.
+ */
+public class BridgeCoreTest {
+
+    public static class TestApi {
+        @JavascriptInterface
+        public Object add(Object msg) throws Exception {
+            JSONObject arg = (JSONObject) msg;
+            return arg.getInt("a") + arg.getInt("b");
+        }
+
+        @JavascriptInterface
+        public void countdown(Object msg, CompletionHandler<Integer> handler) {
+            handler.setProgressData(2);
+            handler.setProgressData(1);
+            handler.complete(0);
+            handler.complete(-1);
+        }
+    }
+
+    public static class GenericApi<T> {
+        @JavascriptInterface
+        public Object echo(T msg) {
+            return msg;
+        }
+
+        @JavascriptInterface
+        public void first(List<T> values, CompletionHandler<Object> handler) {
+            handler.complete(values.get(0));
+        }
+    }
+
+    // no dispatcher is generated for it, its methods are found by reflection
+    private static class ReflectedApi<T> extends GenericApi<T> {
+    }
+
+    private final List<String> messages = new ArrayList<>();
+    private final List<String> scripts = new ArrayList<>();
+    private BridgeCore core;
+
+    @Before
+    public void setUp() {
+        core = new BridgeCore(new BridgeCore.Platform() {
+            @Override
+            public boolean isMainThread() {
+                return true;
+            }
+
+            @Override
+            public void post(Runnable task) {
+                task.run();
+            }
+
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+            }
+
+            @Override
+            public void postMessage(String message) {
+                messages.add(message);
+            }
+
+            @Override
+            public void evaluateJavascript(String script) {
+                scripts.add(script);
+            }
+
+            @Override
+            public void log(String message) {
+            }
+        });
+        core.addJavascriptObject(new TestApi(), "test", null);
+    }
+
+    @Test
+    public void callsSynchronousApi() throws Exception {
+        JSONObject ret = new JSONObject(core.call("test.add", "{\"data\":{\"a\":1,\"b\":2}}"));
+        assertEquals(0, ret.getInt("code"));
+        assertEquals(3, ret.getInt("data"));
+    }
+
+    @Test
+    public void erasesTypeVariablesOfApis() throws Exception {
+        core.addJavascriptObject(new GenericApi<String>(), "generic", null);
+        JSONObject ret = new JSONObject(core.call("generic.echo", "{\"data\":{\"a\":1}}"));
+        assertEquals(0, ret.getInt("code"));
+        assertEquals(1, ret.getJSONObject("data").getInt("a"));
+        assertTrue(core.hasNativeMethod("generic.first", "asyn"));
+        core.addJavascriptObject(new ReflectedApi<String>(), "reflected", null);
+        assertEquals("hi", new JSONObject(core.call("reflected.echo", "{\"data\":\"hi\"}")).getString("data"));
+
+        JSONObject features = new JSONObject();
+        features.put("batch", true);
+        core.setJavascriptFeatures(features);
+        core.setBridgeCodec(new StreamingJsonCodec());
+        core.call("generic.first", "{\"data\":[\"x\",2],\"_dscbstub\":\"dscb0\"}");
+        assertEquals("x", new JSONObject(messages.get(0)).getString("data"));
+    }
+
+    @Test
+    public void reportsMissingMethodAndBadJson() throws Exception {
+        assertEquals(-1, new JSONObject(core.call("test.sub", "{\"data\":1}")).getInt("code"));
+        assertEquals(-1, new JSONObject(core.call("other.add", "{\"data\":1}")).getInt("code"));
+        assertEquals(-1, new JSONObject(core.call("test.add", "not json")).getInt("code"));
+        assertTrue(core.hasNativeMethod("test.add", "syn"));
+        assertFalse(core.hasNativeMethod("test.add", "asyn"));
+        assertTrue(core.hasNativeMethod("test.countdown", "all"));
+    }
+
+    @Test
+    public void deliversProgressAndCompletesOnce() throws Exception {
+        JSONObject features = new JSONObject();
+        features.put("batch", true);
+        core.setJavascriptFeatures(features);
+        core.call("test.countdown", "{\"data\":null,\"_dscbstub\":\"dscb0\"}");
+        assertEquals(3, messages.size());
+        JSONObject last = new JSONObject(messages.get(2));
+        assertEquals("dscb0", last.getString("_dscbstub"));
+        assertEquals(0, last.getInt("data"));
+        assertTrue(last.getBoolean("complete"));
+        assertFalse(new JSONObject(messages.get(0)).getBoolean("complete"));
+    }
+
+    @Test
+    public void runsCallsWithoutExecutorInTheCallingThread() throws Exception {
+        core.addJavascriptObject(new TestApi(), "io", "unregistered");
+        core.call("io.countdown", "{\"data\":null,\"_dscbid\":1}");
+        assertEquals(3, messages.size());
+        assertTrue(new JSONObject(messages.get(2)).getBoolean("complete"));
+    }
+
+    @Test
+    public void exposesApisOverTheirOverloads() throws Exception {
+        // an anonymous class has no dispatcher, its methods are found by reflection
+        core.addJavascriptObject(new Object() {
+            @JavascriptInterface
+            public Object echo(Object msg) {
+                return msg;
+            }
+
+            public Object echo(String msg) {
+                return "helper";
+            }
+
+            public Object hidden(Object msg) {
+                return msg;
+            }
+        }, "overloads", null);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("hi", new JSONObject(core.call("overloads.echo", "{\"data\":\"hi\"}")).getString("data"));
+        }
+        assertEquals(-1, new JSONObject(core.call("overloads.hidden", "{\"data\":1}")).getInt("code"));
+    }
+
+    @Test
+    public void callsBatch() throws Exception {
+        JSONArray rets = new JSONArray(core.callBatch(
+                "[{\"method\":\"test.add\",\"arg\":{\"data\":{\"a\":1,\"b\":1}}},{\"method\":\"test.sub\",\"arg\":{}}]"));
+        assertEquals(2, rets.length());
+        assertEquals(2, rets.getJSONObject(0).getInt("data"));
+        assertEquals(-1, rets.getJSONObject(1).getInt("code"));
+    }
+
+    @Test
+    public void queuesHandlerCallsUntilThePageIsReady() throws Exception {
+        final List<Object> values = new ArrayList<>();
+        core.onNewPage();
+        core.callHandler("addValue", new Object[]{3, 4}, 0, new OnReturnValue<Object>() {
+            @Override
+            public void onValue(Object retValue) {
+                values.add(retValue);
+            }
+        });
+        assertTrue(scripts.isEmpty());
+        assertEquals(1, core.getStartupStats().getPendingCount());
+
+        JSONObject features = new JSONObject();
+        features.put("batch", true);
+        features.put("wire", BridgeCore.WIRE_V2);
+        core.setJavascriptFeatures(features);
+        core.dispatchStartupQueue();
+        assertEquals(1, messages.size());
+        JSONObject message = new JSONObject(messages.get(0));
+        assertEquals("addValue", message.getString("method"));
+        assertEquals(2, message.getJSONArray("data").length());
+
+        JSONObject ret = new JSONObject();
+        ret.put("id", message.getInt("callbackId"));
+        ret.put("complete", true);
+        ret.put("data", 7);
+        core.returnValue(ret);
+        assertEquals(1, values.size());
+        assertEquals(7, values.get(0));
+        assertEquals(0, core.getPendingHandlerCount());
+    }
+
+    @Test
+    public void dropsTheLeastImportantQueuedCalls() throws Exception {
+        final List<String> timedOut = new ArrayList<>();
+        core.onNewPage();
+        core.setStartupQueue(2, StartupOverflowPolicy.DROP_OLDEST);
+        core.setStartupPriority("important", 1);
+        core.setStartupPriority("trivial", -1);
+        for (final String method : new String[]{"important", "normal", "trivial", "other"}) {
+            core.callHandler(method, null, 0, new OnReturnValueOrTimeout<Object>() {
+                @Override
+                public void onValue(Object retValue) {
+                }
+
+                @Override
+                public void onTimeout() {
+                    timedOut.add(method);
+                }
+            });
+        }
+        // "normal" makes room for "other", "trivial" is dropped at once
+        assertEquals("[trivial, normal]", String.valueOf(timedOut));
+        assertEquals(2, core.getPendingHandlerCount());
+
+        // the page is left before it is ready
+        core.onNewPage();
+        assertEquals("[trivial, normal, important, other]", String.valueOf(timedOut));
+        assertEquals(0, core.getPendingHandlerCount());
+    }
+
+    @Test
+    public void endsTheTraceOfDroppedCalls() throws Exception {
+        BridgeTracer tracer = new BridgeTracer();
+        core.setBridgeTracer(tracer);
+        core.onNewPage();
+        core.setStartupQueue(1, StartupOverflowPolicy.DROP_OLDEST);
+        core.callHandler("first", null, 0, new OnReturnValue<Object>() {
+            @Override
+            public void onValue(Object retValue) {
+            }
+        });
+        core.callHandler("second", null, 0, new OnReturnValue<Object>() {
+            @Override
+            public void onValue(Object retValue) {
+            }
+        });
+        core.onNewPage();
+        List<String> events = new ArrayList<>();
+        JSONArray trace = new JSONObject(tracer.toTraceJson()).getJSONArray("traceEvents");
+        for (int i = 0; i < trace.length(); i++) {
+            JSONObject event = trace.getJSONObject(i);
+            if (event.has("id")) {
+                events.add(event.getString("name") + " " + event.getString("ph"));
+            }
+        }
+        assertEquals("[js first b, js second b, js first e, js second e]", String.valueOf(events));
+    }
+
+    @Test
+    public void layersObjectsOverTheRegistry() throws Exception {
+        BridgeRegistry registry = new BridgeRegistry();
+        registry.addJavascriptObject(new TestApi(), "shared");
+        registry.addJavascriptObject(new TestApi(), "test");
+        core.setBridgeRegistry(registry);
+        assertTrue(core.hasNativeMethod("shared.add", "syn"));
+        // the object added to the bridge wins
+        core.addJavascriptObject(new Object(), "test", null);
+        assertFalse(core.hasNativeMethod("test.add", "all"));
+        core.removeJavascriptObject("shared");
+        assertFalse(core.hasNativeMethod("shared.add", "all"));
+
+        core.reset("_dsb");
+        assertFalse(core.hasNativeMethod("shared.add", "all"));
+        registry.removeJavascriptObject("shared");
+        core.setBridgeRegistry(registry);
+        assertEquals(-1, new JSONObject(core.call("shared.add", "{\"data\":{\"a\":1,\"b\":2}}")).getInt("code"));
+        assertEquals(3, new JSONObject(core.call("test.add", "{\"data\":{\"a\":1,\"b\":2}}")).getInt("data"));
+    }
+
+    @Test
+    public void boundsUploads() throws Exception {
+        core.setUploadLimits(16, 2, 60 * 1000);
+        int first = core.beginUpload();
+        assertTrue(core.appendUpload(first, "{\"a\":1,\"b\":"));
+        // too long, it is dropped
+        assertFalse(core.appendUpload(first, "2222222}"));
+        assertEquals(0, core.getUploadCount());
+
+        assertTrue(core.beginUpload() != 0);
+        assertTrue(core.beginUpload() != 0);
+        assertEquals(0, core.beginUpload());
+        assertEquals(2, core.getUploadCount());
+
+        // the abandoned uploads expire
+        core.setUploadLimits(16, 2, 10);
+        Thread.sleep(20);
+        int next = core.beginUpload();
+        assertTrue(next != 0);
+        assertEquals(1, core.getUploadCount());
+        assertTrue(core.appendUpload(next, "{\"a\":1,\"b\":2}"));
+        assertEquals(3, new JSONObject(core.call("test.add", "{\"_dsupload\":" + next + "}")).getInt("data"));
+        assertEquals(0, core.getUploadCount());
+    }
+
+    @Test
+    public void recordsMissingMethodsUnderOneName() throws Exception {
+        BridgeMetrics metrics = new BridgeMetrics();
+        core.setBridgeMetrics(metrics);
+        core.call("test.add", "{\"data\":{\"a\":1,\"b\":2}}");
+        for (int i = 0; i < 3; i++) {
+            core.call("test.missing" + i, "{\"data\":null}");
+            core.call("missing" + i + ".add", "{\"data\":null}");
+        }
+        assertEquals(2, metrics.getMethodMetrics().size());
+        assertEquals(1, metrics.getMethodMetrics("test.add", BridgeMetrics.JS_TO_NATIVE).getCallCount());
+        BridgeMetrics.MethodMetrics unresolved = metrics.getMethodMetrics(BridgeMetrics.UNRESOLVED_METHOD,
+                BridgeMetrics.JS_TO_NATIVE);
+        assertEquals(6, unresolved.getCallCount());
+        assertEquals(6, unresolved.getFailureCount(BridgeMetrics.FAILURE_MISSING_METHOD));
+    }
+}
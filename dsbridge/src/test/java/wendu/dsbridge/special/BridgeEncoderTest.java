@@ -0,0 +1,70 @@
+package wendu.dsbridge.special;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * The encoder writes what the JSONObject of Android would.
+ */
+public class BridgeEncoderTest {
+
+    private final BridgeCodec codec = new OrgJsonCodec();
+
+    @Test
+    public void encodesResults() throws Exception {
+        assertSame(BridgeEncoder.OK_NULL, BridgeEncoder.result(codec, null));
+        assertEquals("{\"code\":0,\"data\":null}", BridgeEncoder.result(codec, JSONObject.NULL));
+        assertEquals("{\"code\":0,\"data\":42}", BridgeEncoder.result(codec, 42));
+        assertEquals("{\"code\":0,\"data\":-7}", BridgeEncoder.result(codec, -7L));
+        assertEquals("{\"code\":0,\"data\":true}", BridgeEncoder.result(codec, true));
+        assertEquals("{\"code\":0,\"data\":1.5}", BridgeEncoder.result(codec, 1.5));
+        assertEquals("{\"code\":0,\"data\":[1,\"a\"]}", BridgeEncoder.result(codec, new JSONArray("[1,\"a\"]")));
+        assertEquals("{\"code\":0,\"data\":\"a\\\"b\\\\c\\/d\\n\\u0001\\u2028\"}",
+                BridgeEncoder.result(codec, "a\"b\\c/d\n\u0001\u2028"));
+    }
+
+    @Test
+    public void rejectsNonFiniteNumbers() throws Exception {
+        try {
+            BridgeEncoder.result(codec, Double.NaN);
+            fail();
+        } catch (JSONException e) {
+            // as JSONObject.put
+        }
+        assertEquals("{\"code\":0,\"data\":1}", BridgeEncoder.result(codec, 1));
+    }
+
+    @Test
+    public void encodesCompletions() throws Exception {
+        assertEquals("{\"_dscbid\":3,\"data\":\"x\",\"complete\":true,\"_dstrace\":\"t1\"}",
+                BridgeEncoder.completion(codec, 3, null, "x", true, "t1"));
+        assertEquals("{\"_dscbstub\":\"dscb1\",\"complete\":false}",
+                BridgeEncoder.completion(codec, 0, "dscb1", null, false, null));
+        assertEquals("dscb1({\"code\":0,\"data\":2}.data);delete window.dscb1",
+                BridgeEncoder.completionScript(codec, "dscb1", 2, true));
+    }
+
+    @Test
+    public void encodesHandlerCalls() throws Exception {
+        String data = BridgeEncoder.arguments(codec, new Object[]{1, "a", null, Arrays.asList(1, 2),
+                Collections.singletonMap("k", "v")});
+        assertEquals("[1,\"a\",null,[1,2],{\"k\":\"v\"}]", data);
+        // arrays are wrapped as JSONArray(Object) of Android wraps them
+        data = BridgeEncoder.arguments(codec, new Object[]{new String[]{"a"}, new int[]{1, 2},
+                new Object[]{true, new long[]{3}, Arrays.asList("b")}});
+        assertEquals("[[\"a\"],[1,2],[true,[3],[\"b\"]]]", data);
+        assertEquals("{\"method\":\"f\",\"callbackId\":1,\"data\":[1]}",
+                BridgeEncoder.call("f", 1, "[1]", BridgeCore.WIRE_V2, null));
+        assertEquals("{\"method\":\"f\",\"callbackId\":1,\"data\":\"[\\\"a\\\"]\",\"_dstrace\":\"t\"}",
+                BridgeEncoder.call("f", 1, "[\"a\"]", BridgeCore.WIRE_V1, "t"));
+    }
+}
@@ -0,0 +1,153 @@
+package wendu.dsbridge.special;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends the requests of fly.js through {@link HttpProxy} to a local server.
+ */
+public class HttpProxyTest {
+
+    private static final class Result implements CompletionHandler<String> {
+        final List<String> progress = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        String value;
+
+        @Override
+        public void complete(String retValue) {
+            value = retValue;
+            done.countDown();
+        }
+
+        @Override
+        public void complete() {
+            complete(null);
+        }
+
+        @Override
+        public void setProgressData(String value) {
+            progress.add(value);
+        }
+
+        JSONObject await() throws Exception {
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            return new JSONObject(value);
+        }
+    }
+
+    private HttpServer server;
+    private HttpProxy proxy;
+    private String base;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/text", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "text/plain; charset=UTF-8", "hello, " + exchange.getRequestMethod());
+            }
+        });
+        server.createContext("/bytes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, "application/octet-stream", "abcdef");
+            }
+        });
+        server.createContext("/redirect", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Location", "/text");
+                respond(exchange, 303, "text/plain", "");
+            }
+        });
+        server.createContext("/escape", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Location", "http://example.com/");
+                respond(exchange, 302, "text/plain", "");
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        proxy = new HttpProxy(Collections.singletonList("127.0.0.1")) {
+            @Override
+            protected String encodeBase64(byte[] data, int offset, int length) {
+                // android.util.Base64 is not implemented in local unit tests
+                return Base64.getEncoder().encodeToString(Arrays.copyOfRange(data, offset, offset + length));
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, int code, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private Result request(String json) throws Exception {
+        Result result = new Result();
+        proxy.onAjaxRequest(new JSONObject(json), result);
+        return result;
+    }
+
+    @Test
+    public void performsRequests() throws Exception {
+        JSONObject response = request("{\"url\":\"" + base + "/text\",\"method\":\"post\",\"data\":\"x\"}").await();
+        assertEquals(200, response.getInt("statusCode"));
+        assertEquals("hello, POST", response.getString("responseText"));
+
+        response = request("{\"url\":\"" + base + "/bytes\",\"responseType\":\"stream\"}").await();
+        assertEquals("YWJjZGVm", response.getString("responseText"));
+
+        Result chunked = request("{\"url\":\"" + base + "/text\",\"chunked\":true}");
+        assertTrue(chunked.await().getBoolean("done"));
+        assertEquals(200, new JSONObject(chunked.progress.get(0)).getInt("statusCode"));
+        assertEquals("hello, GET", new JSONObject(chunked.progress.get(1)).getString("responseText"));
+    }
+
+    @Test
+    public void followsRedirectsToAllowedHosts() throws Exception {
+        JSONObject response = request("{\"url\":\"" + base + "/redirect\",\"method\":\"POST\"}").await();
+        assertEquals(200, response.getInt("statusCode"));
+        assertEquals("hello, GET", response.getString("responseText"));
+    }
+
+    @Test
+    public void rejectsOtherHosts() throws Exception {
+        assertEquals(0, request("{\"url\":\"http://example.com/\"}").await().getInt("statusCode"));
+        assertEquals(0, request("{\"url\":\"file:///etc/hosts\"}").await().getInt("statusCode"));
+        JSONObject response = request("{\"url\":\"" + base + "/escape\"}").await();
+        assertEquals(0, response.getInt("statusCode"));
+        assertTrue(response.getString("responseText").contains("example.com"));
+    }
+}
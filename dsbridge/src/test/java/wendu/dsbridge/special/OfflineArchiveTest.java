@@ -0,0 +1,95 @@
+package wendu.dsbridge.special;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads on-disk zip packages through {@link OfflineArchive} and compares the entries with what
+ * was written.
+ */
+public class OfflineArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsStoredAndDeflatedEntries() throws IOException {
+        byte[] html = "<html><body>offline</body></html>".getBytes("UTF-8");
+        byte[] binary = new byte[200000];
+        new Random(1).nextBytes(binary);
+        File zip = folder.newFile("app.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        out.setComment("a comment after the central directory");
+        out.putNextEntry(new ZipEntry("static/"));
+        out.closeEntry();
+        out.putNextEntry(new ZipEntry("index.html"));
+        out.write(html);
+        out.closeEntry();
+        ZipEntry stored = new ZipEntry("static/image.bin");
+        stored.setMethod(ZipEntry.STORED);
+        stored.setSize(binary.length);
+        CRC32 crc = new CRC32();
+        crc.update(binary);
+        stored.setCrc(crc.getValue());
+        out.putNextEntry(stored);
+        out.write(binary);
+        out.closeEntry();
+        out.putNextEntry(new ZipEntry("static/app.js"));
+        out.write(binary);
+        out.closeEntry();
+        out.close();
+
+        OfflineArchive archive = OfflineArchive.open(zip);
+        assertArrayEquals(html, read(archive.open("index.html")));
+        assertArrayEquals(binary, read(archive.open("static/image.bin")));
+        assertArrayEquals(binary, read(archive.open("static/app.js")));
+        assertEquals(binary.length, archive.size("static/app.js"));
+        assertTrue(archive.contains("static/image.bin"));
+        assertFalse(archive.contains("static/"));
+        assertNull(archive.open("missing.html"));
+        assertEquals(-1, archive.size("missing.html"));
+    }
+
+    @Test
+    public void rejectsFilesWhichAreNotZip() throws IOException {
+        File file = folder.newFile("broken.zip");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a zip file at all".getBytes("UTF-8"));
+        out.close();
+        try {
+            OfflineArchive.open(file);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Not a zip file"));
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
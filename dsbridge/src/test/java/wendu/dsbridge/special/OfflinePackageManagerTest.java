@@ -0,0 +1,95 @@
+package wendu.dsbridge.special;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Resolves urls against a registered package, as {@link OfflinePackageManager#intercept(String)}
+ * does before it wraps the response.
+ */
+public class OfflinePackageManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File zip(String... namesAndContents) throws IOException {
+        File zip = folder.newFile("app.zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            out.putNextEntry(new ZipEntry(namesAndContents[i]));
+            out.write(namesAndContents[i + 1].getBytes("UTF-8"));
+            out.closeEntry();
+        }
+        out.close();
+        return zip;
+    }
+
+    private static String read(OfflinePackageManager.Resource resource) throws IOException {
+        InputStream in = resource.data;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void servesTheUrlsOfThePackage() throws IOException {
+        OfflinePackageManager manager = new OfflinePackageManager(2);
+        manager.register("https://m.example.com/app", "1", zip("index.html", "<html>",
+                "static/app.js", "var a;", "logo.png", "png", "a b.html", "space", "c+d.html", "plus"));
+
+        OfflinePackageManager.Resource index = manager.serve("https://m.example.com/app/");
+        assertEquals("<html>", read(index));
+        assertEquals("text/html", index.mimeType);
+        assertEquals("UTF-8", index.encoding);
+        assertEquals("<html>", read(manager.serve("https://m.example.com/app")));
+        assertEquals("<html>", read(manager.serve("https://m.example.com/app?from=push")));
+
+        OfflinePackageManager.Resource script = manager.serve("https://m.example.com/app/static/app.js?v=2#top");
+        assertEquals("var a;", read(script));
+        assertEquals("application/javascript", script.mimeType);
+        OfflinePackageManager.Resource image = manager.serve("https://m.example.com/app/logo.png");
+        assertEquals("image/png", image.mimeType);
+        assertNull(image.encoding);
+        assertEquals("space", read(manager.serve("https://m.example.com/app/a%20b.html")));
+        assertEquals("plus", read(manager.serve("https://m.example.com/app/c+d.html")));
+
+        assertNull(manager.serve("https://m.example.com/app/missing.html"));
+        assertNull(manager.serve("https://m.example.com/app/%zz"));
+        // not in the package, though the url starts with its prefix
+        assertNull(manager.serve("https://m.example.com/apple/index.html"));
+        assertEquals(9, manager.getRequestCount());
+        assertEquals(7, manager.getHitCount());
+    }
+
+    @Test
+    public void ignoresPackagesCorruptedAfterRegistration() throws IOException {
+        OfflinePackageManager manager = new OfflinePackageManager(2);
+        File zip = zip("index.html", "<html>");
+        manager.register("https://m.example.com/app/", "1", zip);
+        // the name length of the local header points past the end of the file
+        RandomAccessFile file = new RandomAccessFile(zip, "rw");
+        file.seek(26);
+        file.write(new byte[]{(byte) 0xff, (byte) 0xff});
+        file.close();
+        assertNull(manager.serve("https://m.example.com/app/index.html"));
+        assertEquals(0, manager.getHitCount());
+    }
+}
@@ -0,0 +1,150 @@
+package wendu.dsbridge.special;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Decodes calls and binds their arguments without org.json, and encodes values back.
+ */
+public class StreamingJsonCodecTest {
+
+    public enum Color {RED, GREEN}
+
+    public static class Point {
+        public int x;
+        public Integer y;
+        public Color color;
+        public List<Point> children;
+        public transient String ignored = "kept";
+    }
+
+    public static class Holder {
+        public Map<String, List<Long>> values;
+        public String[] names;
+        public Object raw;
+    }
+
+    private final BridgeCodec codec = new StreamingJsonCodec();
+
+    private static Type typeOf(String field) throws Exception {
+        return Holder.class.getField(field).getGenericType();
+    }
+
+    @Test
+    public void readsTheEnvelope() throws Exception {
+        String argStr = " {\"_dstrace\":\"t1\", \"data\":{\"skipped\":[1,{\"a\":\"}\"}]}, \"_dscbid\":7} ";
+        BridgeCodec.Call call = codec.decodeCall(argStr);
+        assertEquals(7, call.callbackId());
+        assertNull(call.callback());
+        assertEquals("t1", call.traceId());
+        assertEquals(argStr.trim().length(), call.length());
+
+        call = codec.decodeCall("{\"_dscbstub\":\"dscb3\"}");
+        assertEquals("dscb3", call.callback());
+        assertNull(call.data(Object.class));
+        assertSame(JSONObject.NULL, codec.decodeCall("{\"data\":null}").data(Object.class));
+    }
+
+    @Test
+    public void bindsToOrgJsonForObjects() throws Exception {
+        Object data = codec.decodeCall("{\"data\":{\"a\":[1,2.5,\"x\\n\\u0041\",true,null],\"b\":12345678901}}")
+                .data(Object.class);
+        JSONObject object = (JSONObject) data;
+        JSONArray a = object.getJSONArray("a");
+        assertEquals(1, a.get(0));
+        assertEquals(2.5, a.get(1));
+        assertEquals("x\nA", a.get(2));
+        assertEquals(true, a.get(3));
+        assertSame(JSONObject.NULL, a.get(4));
+        assertEquals(12345678901L, object.get("b"));
+    }
+
+    @Test
+    public void bindsToTypes() throws Exception {
+        Point point = (Point) codec.decodeCall("{\"data\":{\"x\":1,\"y\":2,\"color\":\"GREEN\",\"unknown\":{\"x\":9},"
+                + "\"ignored\":\"no\",\"children\":[{\"x\":3,\"y\":null}]}}").data(Point.class);
+        assertEquals(1, point.x);
+        assertEquals(Integer.valueOf(2), point.y);
+        assertEquals(Color.GREEN, point.color);
+        assertEquals("kept", point.ignored);
+        assertEquals(1, point.children.size());
+        assertEquals(3, point.children.get(0).x);
+        assertNull(point.children.get(0).y);
+
+        Holder holder = (Holder) codec.decodeCall("{\"data\":{\"values\":{\"a\":[1,2]},\"names\":[\"n\"],"
+                + "\"raw\":{\"k\":1}}}").data(Holder.class);
+        assertEquals(Arrays.asList(1L, 2L), holder.values.get("a"));
+        assertEquals("n", holder.names[0]);
+        assertTrue(holder.raw instanceof JSONObject);
+        assertEquals(Collections.singletonMap("a", Arrays.asList(1L, 2L)),
+                codec.decodeCall("{\"data\":{\"a\":[1,2]}}").data(typeOf("values")));
+        assertEquals("s", codec.decodeCall("{\"data\":\"s\"}").data(String.class));
+        assertEquals(2.0, codec.decodeCall("{\"data\":2}").data(Double.class));
+    }
+
+    @Test
+    public void rejectsMismatches() throws Exception {
+        for (String argStr : new String[]{"{\"data\":1", "{\"data\":1}x", "[1]", "{\"_dscbid\":\"a\"}"}) {
+            try {
+                codec.decodeCall(argStr);
+                fail(argStr);
+            } catch (JSONException e) {
+                // invalid
+            }
+        }
+        Object[][] mismatches = {{"\"text\"", Point.class}, {"[1,null]", int[].class}, {"[1,\"a\"]", int[].class},
+                {"{\"children\":[{\"x\":null}],\"x\":[1]}", Point.class}};
+        for (Object[] mismatch : mismatches) {
+            try {
+                codec.decodeCall("{\"data\":" + mismatch[0] + "}").data((Type) mismatch[1]);
+                fail(String.valueOf(mismatch[0]));
+            } catch (JSONException e) {
+                // valid JSON of another shape
+            }
+        }
+    }
+
+    @Test
+    public void decodesBatches() throws Exception {
+        BridgeCodec.Call[] calls = codec.decodeBatch("[{\"method\":\"a.b\",\"arg\":{\"data\":1}},2,{\"method\":\"c\"}]");
+        assertEquals(3, calls.length);
+        assertEquals("a.b", calls[0].method());
+        assertEquals(1, calls[0].data(Integer.class));
+        assertNull(calls[1]);
+        assertNull(calls[2]);
+    }
+
+    @Test
+    public void encodesValues() throws Exception {
+        Point point = new Point();
+        point.x = 1;
+        point.color = Color.RED;
+        point.children = Collections.emptyList();
+        StringBuilder out = new StringBuilder();
+        codec.encodeValue(point, out);
+        JSONObject encoded = new JSONObject(out.toString());
+        assertEquals(4, encoded.length());
+        assertEquals(1, encoded.getInt("x"));
+        assertTrue(encoded.isNull("y"));
+        assertEquals("RED", encoded.getString("color"));
+        assertEquals(0, encoded.getJSONArray("children").length());
+
+        out.setLength(0);
+        codec.encodeArguments(new Object[]{new int[]{1, 2}, Collections.singletonMap("k", "v/"), null}, out);
+        assertEquals("[[1,2],{\"k\":\"v\\/\"},null]", out.toString());
+    }
+}